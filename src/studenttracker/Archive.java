@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Moves students out of the working students table into archive at the end
+ * of a school year, and back again on request. Archived rows keep their id,
+ * so their walk-ins and forms stay where they are and remain queryable by
+ * joining on archive instead of students. Each rollover tags its rows with
+ * the school year, which is indexed and serves as the archive's partition.
+ *
+ * @author Andrew Burch
+ */
+public class Archive {
+
+    public static final class Result {
+
+        Result(int schoolYear, List<Integer> ids, long nanos) {
+            this.schoolYear = schoolYear;
+            this.ids = ids;
+            this.nanos = nanos;
+        }
+
+        public int getSchoolYear() {
+            return schoolYear;
+        }
+
+        /**
+         * Ids of the students that were archived.
+         */
+        public List<Integer> getIds() {
+            return ids;
+        }
+
+        public double getRowsPerSecond() {
+            return nanos == 0 ? 0 : ids.size() * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Archived " + ids.size() + " students for school year "
+                    + schoolYear + "-" + (schoolYear + 1) + " in "
+                    + nanos / 1000000 + " ms ("
+                    + Math.round(getRowsPerSecond()) + " rows/s)";
+        }
+
+        private final int schoolYear;
+        private final List<Integer> ids;
+        private final long nanos;
+    }
+
+    public Archive(Database database) {
+        this.database = database;
+    }
+
+    /**
+     * Returns the school year holding day, named by the calendar year it
+     * starts in. School years start on August 1st.
+     */
+    public static int schoolYear(int day) {
+        LocalDate date = LocalDate.ofEpochDay(day);
+        return date.getMonthValue() >= 8 ? date.getYear() : date.getYear() - 1;
+    }
+
+    /**
+     * Archives, in one transaction, every student who has had a service and
+     * has none still active, and every student whose full name is not in
+     * rosterNames. A null rosterNames archives by services only.
+     */
+    public Result rollover(int schoolYear, Collection<String> rosterNames)
+            throws SQLException {
+        long started = System.nanoTime();
+        List<Integer> ids = database.transaction("archive school year "
+                + schoolYear, db -> {
+            try (Statement stat = db.connection().createStatement()) {
+                stat.executeUpdate("create temp table if not exists "
+                        + "roster_names (fullName text primary key);");
+                stat.executeUpdate("create temp table if not exists "
+                        + "archive_ids (id integer primary key);");
+                stat.executeUpdate("delete from temp.roster_names;");
+                stat.executeUpdate("delete from temp.archive_ids;");
+            }
+            String offRoster = "";
+            if (rosterNames != null) {
+                PreparedStatement name = db.prepare("insert or ignore into "
+                        + "temp.roster_names (fullName) values (?);");
+                for (String fullName : rosterNames) {
+                    name.setString(1, fullName);
+                    name.addBatch();
+                }
+                name.executeBatch();
+                offRoster = " or fullName not in (select fullName from "
+                        + "temp.roster_names)";
+            }
+            db.prepare("insert into temp.archive_ids (id) select id from "
+                    + "students where (" + SERVICES_ENDED + ")" + offRoster
+                    + ";").executeUpdate();
+            PreparedStatement copy = db.prepare("insert into archive ("
+                    + StudentStore.COLUMNS + ", school_year) select "
+                    + StudentStore.COLUMNS + ", ? from students where id in "
+                    + "(select id from temp.archive_ids);");
+            copy.setInt(1, schoolYear);
+            copy.executeUpdate();
+            db.prepare("delete from student_search where rowid in (select id "
+                    + "from temp.archive_ids);").executeUpdate();
+            db.prepare("delete from students where id in (select id from "
+                    + "temp.archive_ids);").executeUpdate();
+            List<Integer> archived = new ArrayList<>();
+            try (ResultSet rs = db.prepare("select id from temp.archive_ids;")
+                    .executeQuery()) {
+                while (rs.next()) {
+                    archived.add(rs.getInt(1));
+                }
+            }
+            return archived;
+        });
+        Result result = new Result(schoolYear, ids, System.nanoTime()
+                - started);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * Moves the most recently archived student with the given full name back
+     * into students. An empty students row that has since been created for
+     * the same name is replaced. Returns the student's id, or -1 if nobody
+     * by that name is archived.
+     *
+     * @throws SQLException if the name belongs to an active student with
+     * records of their own.
+     */
+    public int restore(String fullName) throws SQLException {
+        return database.transaction("restore " + fullName, db -> {
+            PreparedStatement find = db.prepare("select id from archive where "
+                    + "fullName = ? order by school_year desc, id desc "
+                    + "limit 1;");
+            find.setString(1, fullName);
+            int id;
+            try (ResultSet rs = find.executeQuery()) {
+                if (!rs.next()) {
+                    return -1;
+                }
+                id = rs.getInt(1);
+            }
+            PreparedStatement active = db.prepare("select id, (" + BLANK
+                    + ") from students s where fullName = ?;");
+            active.setString(1, fullName);
+            try (ResultSet rs = active.executeQuery()) {
+                if (rs.next()) {
+                    if (!rs.getBoolean(2)) {
+                        throw new SQLException(fullName + " is already an "
+                                + "active student with their own records.");
+                    }
+                    PreparedStatement drop = db.prepare("delete from students "
+                            + "where id = ?;");
+                    drop.setInt(1, rs.getInt(1));
+                    drop.executeUpdate();
+                    StudentSearch.reindex(db, Collections.singleton(
+                            rs.getInt(1)));
+                }
+            }
+            PreparedStatement copy = db.prepare("insert into students ("
+                    + StudentStore.COLUMNS + ") select " + StudentStore.COLUMNS
+                    + " from archive where id = ?;");
+            copy.setInt(1, id);
+            copy.executeUpdate();
+            PreparedStatement delete = db.prepare("delete from archive where "
+                    + "id = ?;");
+            delete.setInt(1, id);
+            delete.executeUpdate();
+            StudentSearch.reindex(db, Collections.singleton(id));
+            return id;
+        });
+    }
+
+    /**
+     * Number of students archived for schoolYear.
+     */
+    public int count(int schoolYear) throws SQLException {
+        return database.run("count archive", db -> {
+            PreparedStatement prep = db.prepare("select count(*) from archive "
+                    + "where school_year = ?;");
+            prep.setInt(1, schoolYear);
+            try (ResultSet rs = prep.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        });
+    }
+
+    private static String active(String start, String end) {
+        return "(" + start + " is not null and (" + end + " is null or " + end
+                + " < " + start + "))";
+    }
+
+    /**
+     * Students who have started at least one service and have none active.
+     */
+    private static final String SERVICES_ENDED = "(indStart is not null or "
+            + "groupStart is not null or checkInStart is not null) and not "
+            + active("indStart", "indEnd") + " and not "
+            + active("groupStart", "groupEnd") + " and not "
+            + active("checkInStart", "checkInEnd");
+
+    /**
+     * True for a students row s holding nothing but a name.
+     */
+    private static final String BLANK = "coalesce(s.indStart, s.indEnd, "
+            + "s.groupStart, s.groupEnd, s.checkInStart, s.checkInEnd) is null "
+            + "and s.notes = '' and s.hasIEP = 0 and s.has504 = 0 "
+            + "and s.hasEval = 0 and not exists (select 1 from walk_ins where "
+            + "student_id = s.id) and not exists (select 1 from forms where "
+            + "student_id = s.id)";
+
+    private final Database database;
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Content-addressed storage for form files. Files are copied in by
+ * {@link FileTransfer} and each distinct file is kept once, named by the
+ * SHA-256 hash of its contents, however many students it is attached to; a
+ * student's forms rows refer to it by hash. The attachments table counts
+ * those references (see {@link Migrations}), and files nobody refers to any
+ * more are deleted by {@link #collect}.
+ * <p>
+ * Stored files are never changed in place, since other students may share
+ * them. They are opened through a private copy from {@link #checkout}.
+ *
+ * @author Andrew Burch
+ */
+public class AttachmentStore {
+
+    /**
+     * How long a stored file may sit unreferenced before it can be
+     * collected, which covers the time between storing a form and the write
+     * queue saving the student's forms.
+     */
+    public static final long GRACE_MILLIS = 10 * 60 * 1000;
+
+    public AttachmentStore(Database database, Path root) throws IOException {
+        this.database = database;
+        this.root = root;
+        Files.createDirectories(root);
+    }
+
+    /**
+     * Copies source into the store, hashing it as it is copied, unless
+     * identical contents are already stored, reporting the copy's progress.
+     * Returns the form to attach.
+     */
+    public Form store(File source, FileTransfer.Progress progress)
+            throws IOException, SQLException {
+        return store(source, progress, true);
+    }
+
+    /**
+     * Stores source as {@link #store(File, FileTransfer.Progress)} does, but
+     * if record is false leaves recording the stored file to the caller, who
+     * saves it in the same transaction as its forms rows with
+     * {@link StudentStore#addForms}. Until then the file is not collected: a
+     * newly stored file has no attachments row for {@link #collect} to find,
+     * and one that was already stored has its grace period restarted.
+     */
+    Form store(File source, FileTransfer.Progress progress, boolean record)
+            throws IOException, SQLException {
+        Path temp = Files.createTempFile(root, "incoming", ".tmp");
+        try {
+            FileTransfer.Result copied = FileTransfer.copy(source.toPath(),
+                    temp, null, progress);
+            long size = copied.getSize();
+            String hash = copied.getHash();
+            Path blob = path(hash);
+            boolean stored;
+            //Never race a collection of the same file.
+            synchronized (this) {
+                stored = Files.exists(blob);
+                if (!stored) {
+                    Files.createDirectories(blob.getParent());
+                    try {
+                        Files.move(temp, blob, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (AtomicMoveNotSupportedException amns) {
+                        Files.move(temp, blob);
+                    } catch (FileAlreadyExistsException fae) {
+                        stored = true;
+                    }
+                    blob.toFile().setReadOnly();
+                }
+                //Contents already here may be up for collection; hold them.
+                if (record || stored) {
+                    record(hash, size);
+                }
+            }
+            return new Form(source.getName(), size, source.lastModified(),
+                    hash);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Adds source to the store as a hard link rather than a copy, reading
+     * it once to hash it, unless identical contents are already stored.
+     * Falls back to a copy when the store is on another file system. Like
+     * everything in the store, a linked file is made read-only, which also
+     * makes source read-only. Returns the form to attach.
+     */
+    public Form link(File source) throws IOException, SQLException {
+        return link(source, true);
+    }
+
+    /**
+     * Links source as {@link #link(File)} does, leaving recording to the
+     * caller if record is false, as {@link #store(File,
+     * FileTransfer.Progress, boolean)} does.
+     */
+    Form link(File source, boolean record) throws IOException, SQLException {
+        String hash = FileTransfer.hash(source.toPath());
+        long size = Files.size(source.toPath());
+        Path blob = path(hash);
+        boolean stored;
+        boolean linked = false;
+        synchronized (this) {
+            stored = Files.exists(blob);
+            if (!stored) {
+                Files.createDirectories(blob.getParent());
+                try {
+                    Files.createLink(blob, source.toPath());
+                    blob.toFile().setReadOnly();
+                    linked = true;
+                } catch (IOException | UnsupportedOperationException ex) {
+                    //Another file system, or no hard links; copy below.
+                }
+            }
+            if (stored || (record && linked)) {
+                record(hash, size);
+            }
+        }
+        if (!stored && !linked) {
+            return store(source, null, record);
+        }
+        return new Form(source.getName(), size, source.lastModified(), hash);
+    }
+
+    /**
+     * Returns the stored file for form, or null if form's contents are not
+     * in the store.
+     */
+    public Path locate(Form form) {
+        if (form.getHash() == null) {
+            return null;
+        }
+        Path blob = path(form.getHash());
+        return Files.exists(blob) ? blob : null;
+    }
+
+    /**
+     * Copies form's stored file to a temporary folder under its own file
+     * name, so it can be opened without touching the shared copy. Returns
+     * the copy, or null if form's contents are not in the store.
+     */
+    public Path checkout(Form form) throws IOException {
+        Path blob = locate(form);
+        if (blob == null) {
+            return null;
+        }
+        Path folder = Files.createTempDirectory("studenttracker");
+        Path copy = folder.resolve(form.getFileName());
+        Files.copy(blob, copy);
+        copy.toFile().deleteOnExit();
+        folder.toFile().deleteOnExit();
+        return copy;
+    }
+
+    /**
+     * Deletes every stored file that no forms row refers to and that was
+     * last stored more than graceMillis ago. Returns the number of files
+     * deleted.
+     */
+    public int collect(long graceMillis) throws IOException, SQLException {
+        long cutoff = System.currentTimeMillis() - graceMillis;
+        List<String> unreferenced = database.run("find unreferenced "
+                + "attachments", db -> {
+            PreparedStatement query = db.prepare("select hash from "
+                    + "attachments where refs <= 0 and stored < ?;");
+            query.setLong(1, cutoff);
+            List<String> hashes = new ArrayList<>();
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    hashes.add(rs.getString(1));
+                }
+            }
+            return hashes;
+        });
+        int collected = 0;
+        long freed = 0;
+        for (String hash : unreferenced) {
+            synchronized (this) {
+                //Drop the row first, and only if it is still unreferenced.
+                int dropped = database.transaction("collect attachment",
+                        db -> {
+                    PreparedStatement delete = db.prepare("delete from "
+                            + "attachments where hash = ? and refs <= 0 and "
+                            + "stored < ?;");
+                    delete.setString(1, hash);
+                    delete.setLong(2, cutoff);
+                    return delete.executeUpdate();
+                });
+                if (dropped > 0) {
+                    Path blob = path(hash);
+                    if (Files.exists(blob)) {
+                        freed += Files.size(blob);
+                        blob.toFile().setWritable(true);
+                        Files.delete(blob);
+                    }
+                    collected++;
+                }
+            }
+        }
+        if (collected > 0) {
+            System.out.println("Collected " + collected
+                    + " unreferenced attachments, freeing " + freed
+                    + " bytes");
+        }
+        return collected;
+    }
+
+    /**
+     * Records that hash is stored, restarting its grace period.
+     */
+    private void record(String hash, long size) throws SQLException {
+        database.transaction("record attachment", db -> {
+            PreparedStatement upsert = db.prepare("insert into attachments "
+                    + "(hash, size, stored) values (?, ?, ?) on conflict "
+                    + "(hash) do update set stored = excluded.stored;");
+            upsert.setString(1, hash);
+            upsert.setLong(2, size);
+            upsert.setLong(3, System.currentTimeMillis());
+            return upsert.executeUpdate();
+        });
+    }
+
+    /**
+     * Files are spread over 256 folders by the first two hex digits of their
+     * hash.
+     */
+    private Path path(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private final Database database;
+    private final Path root;
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+
+/**
+ * Runs blocking database and file work off the JavaFX application thread and
+ * hands results back to it with {@link Platform#runLater}. The number of
+ * tasks still in flight is published as a property so the GUI can show that
+ * work is pending.
+ *
+ * @author Andrew Burch
+ */
+public class Background implements AutoCloseable {
+
+    public Background(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "background-"
+                    + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs work on a background thread.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> work) {
+        changePending(1);
+        CompletableFuture<T> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                future.complete(work.call());
+            } catch (Throwable ex) {
+                future.completeExceptionally(ex);
+            } finally {
+                changePending(-1);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Runs work on a background thread, then passes its result to onDone or
+     * its failure to onFailed on the JavaFX application thread.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> work,
+            Consumer<T> onDone, Consumer<Throwable> onFailed) {
+        CompletableFuture<T> future = submit(work);
+        future.whenComplete((result, ex) -> Platform.runLater(() -> {
+            if (ex == null) {
+                onDone.accept(result);
+            } else {
+                onFailed.accept(ex instanceof CompletionException
+                        ? ex.getCause() : ex);
+            }
+        }));
+        return future;
+    }
+
+    /**
+     * Like {@link #submit(Callable, Consumer, Consumer)}, logging failures.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> work,
+            Consumer<T> onDone) {
+        return submit(work, onDone, ex -> System.err.println(
+                "Background task failed: " + ex));
+    }
+
+    /**
+     * Number of submitted tasks that have not finished. Only read this on the
+     * JavaFX application thread.
+     */
+    public ReadOnlyIntegerProperty pendingProperty() {
+        return pending.getReadOnlyProperty();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void changePending(int delta) {
+        int now = inFlight.addAndGet(delta);
+        if (Platform.isFxApplicationThread()) {
+            pending.set(now);
+        } else {
+            Platform.runLater(() -> pending.set(inFlight.get()));
+        }
+    }
+
+    private final ExecutorService executor;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ReadOnlyIntegerWrapper pending = new ReadOnlyIntegerWrapper();
+}
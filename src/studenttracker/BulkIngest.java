@@ -0,0 +1,324 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Brings an existing Student Files tree into the {@link AttachmentStore} in
+ * one pass. Each top-level folder of the tree is matched to a roster student
+ * by the "First Last" name {@link Student} derives, ignoring case and extra
+ * spaces, and a folder named "Last, First" matches too. Every file under a
+ * matched folder is stored, or hard linked, and attached to the student;
+ * files in subfolders are named by their path, such as "2015 - IEP.pdf".
+ * <p>
+ * Folders are walked on a fork/join pool, one task per folder, and the
+ * stored forms are handed back to the calling thread, which saves them in
+ * batched transactions while the walk goes on. Folders that match nobody on
+ * the roster are skipped and reported.
+ *
+ * @author Andrew Burch
+ */
+public class BulkIngest {
+
+    public static final class Result {
+
+        Result(int files, long bytes, Set<String> fullNames,
+                List<String> unmatched, int failed, long nanos) {
+            this.files = files;
+            this.bytes = bytes;
+            this.fullNames = fullNames;
+            this.unmatched = unmatched;
+            this.failed = failed;
+            this.nanos = nanos;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Full names of every student that was given forms.
+         */
+        public Set<String> getFullNames() {
+            return fullNames;
+        }
+
+        /**
+         * Names of the top-level folders that matched no roster student.
+         */
+        public List<String> getUnmatched() {
+            return unmatched;
+        }
+
+        /**
+         * Files that could not be read or stored.
+         */
+        public int getFailed() {
+            return failed;
+        }
+
+        public double getFilesPerSecond() {
+            return nanos == 0 ? 0 : files * 1e9 / nanos;
+        }
+
+        public double getBytesPerSecond() {
+            return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Ingested " + files + " files (" + bytes / (1024 * 1024)
+                    + " MB) for " + fullNames.size() + " students in "
+                    + nanos / 1000000 + " ms (" + Math.round(
+                            getFilesPerSecond()) + " files/s, "
+                    + Math.round(getBytesPerSecond() / (1024 * 1024))
+                    + " MB/s), failed " + failed + ", unmatched folders "
+                    + unmatched.size();
+        }
+
+        private final int files;
+        private final long bytes;
+        private final Set<String> fullNames;
+        private final List<String> unmatched;
+        private final int failed;
+        private final long nanos;
+    }
+
+    /**
+     * Creates an ingest saving batchSize forms per transaction and walking
+     * folders on the given number of threads.
+     */
+    public BulkIngest(StudentStore store, AttachmentStore attachments,
+            int batchSize, int threads) {
+        this.store = store;
+        this.attachments = attachments;
+        this.batchSize = batchSize;
+        this.threads = threads;
+    }
+
+    /**
+     * Hard links files into the store instead of copying them, which is
+     * much faster but leaves the originals read-only. Falls back to copying
+     * when the tree is on another file system.
+     */
+    public void setLink(boolean link) {
+        this.link = link;
+    }
+
+    /**
+     * Ingests every student folder directly under source whose name matches
+     * one of rosterNames.
+     */
+    public Result run(Path source, Collection<String> rosterNames)
+            throws IOException, SQLException {
+        long started = System.nanoTime();
+        bytes.set(0);
+        failed.set(0);
+        Map<String, String> roster = new HashMap<>();
+        for (String fullName : rosterNames) {
+            roster.put(key(fullName), fullName);
+        }
+        //Match the top-level folders before walking any of them.
+        Map<Path, String> matched = new HashMap<>();
+        List<String> unmatched = new ArrayList<>();
+        try (DirectoryStream<Path> folders = Files.newDirectoryStream(source,
+                Files::isDirectory)) {
+            for (Path folder : folders) {
+                String name = folder.getFileName().toString();
+                if (name.startsWith(".")) {
+                    continue;
+                }
+                String fullName = roster.get(key(name));
+                if (fullName == null) {
+                    unmatched.add(name);
+                } else {
+                    matched.put(folder, fullName);
+                }
+            }
+        }
+        Collections.sort(unmatched);
+        Map<String, Integer> ids = store.ids(new TreeSet<>(matched.values()));
+
+        List<Folder> tasks = new ArrayList<>();
+        for (Map.Entry<Path, String> entry : matched.entrySet()) {
+            tasks.add(new Folder(entry.getKey(), ids.get(entry.getValue()),
+                    entry.getValue(), ""));
+        }
+        RecursiveAction walk = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        };
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Set<String> fullNames = new TreeSet<>();
+        List<Integer> batchIds = new ArrayList<>(batchSize);
+        List<Form> batchForms = new ArrayList<>(batchSize);
+        int files = 0;
+        try {
+            pool.execute(walk);
+            //Save forms as they arrive until the walk is done and drained.
+            while (true) {
+                Ingested ingested = ingestedQueue.poll(100,
+                        TimeUnit.MILLISECONDS);
+                if (ingested == null) {
+                    if (walk.isDone() && ingestedQueue.isEmpty()) {
+                        break;
+                    }
+                    continue;
+                }
+                batchIds.add(ingested.studentId);
+                batchForms.add(ingested.form);
+                fullNames.add(ingested.fullName);
+                files++;
+                if (batchForms.size() >= batchSize) {
+                    store.addForms(batchIds, batchForms);
+                    batchIds.clear();
+                    batchForms.clear();
+                }
+            }
+            walk.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Ingest of " + source + " interrupted.");
+        } finally {
+            pool.shutdownNow();
+        }
+        if (!batchForms.isEmpty()) {
+            store.addForms(batchIds, batchForms);
+        }
+        Result result = new Result(files, bytes.get(), fullNames, unmatched,
+                failed.get(), System.nanoTime() - started);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * Returns the key a student folder or roster name matches on: the name
+     * {@link Student} derives from it, in lower case, with "Last, First"
+     * turned around.
+     */
+    static String key(String name) {
+        String trimmed = name.trim().replaceAll("\\s+", " ");
+        int comma = trimmed.indexOf(',');
+        if (comma >= 0) {
+            trimmed = (trimmed.substring(comma + 1).trim() + " "
+                    + trimmed.substring(0, comma).trim()).trim();
+        }
+        Student student = new Student(trimmed);
+        return (student.getFirstName() + " " + student.getLastName()).trim()
+                .toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Stores the files of one folder, forking a task for each subfolder.
+     */
+    private final class Folder extends RecursiveAction {
+
+        Folder(Path folder, int studentId, String fullName, String prefix) {
+            this.folder = folder;
+            this.studentId = studentId;
+            this.fullName = fullName;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected void compute() {
+            List<Folder> subfolders = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(
+                    folder)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (name.startsWith(".") || Files.isHidden(entry)) {
+                        continue;
+                    }
+                    if (Files.isDirectory(entry)) {
+                        subfolders.add(new Folder(entry, studentId, fullName,
+                                prefix + name + " - "));
+                    } else if (Files.isRegularFile(entry)) {
+                        ingest(entry, prefix + name);
+                    }
+                }
+            } catch (IOException ex) {
+                System.err.println("Could not list " + folder + ": " + ex);
+                failed.incrementAndGet();
+            }
+            invokeAll(subfolders);
+        }
+
+        private void ingest(Path file, String fileName) {
+            try {
+                //Recorded with the forms, in the batched transaction.
+                Form form = link ? attachments.link(file.toFile(), false)
+                        : attachments.store(file.toFile(), null, false);
+                if (!form.getFileName().equals(fileName)) {
+                    form = new Form(fileName, form.getSize(),
+                            form.getModified(), form.getHash());
+                }
+                bytes.addAndGet(form.getSize());
+                ingestedQueue.add(new Ingested(studentId, fullName, form));
+            } catch (IOException | SQLException ex) {
+                System.err.println("Could not store " + file + ": " + ex);
+                failed.incrementAndGet();
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path folder;
+        private final int studentId;
+        private final String fullName;
+        private final String prefix;
+    }
+
+    private static final class Ingested {
+
+        Ingested(int studentId, String fullName, Form form) {
+            this.studentId = studentId;
+            this.fullName = fullName;
+            this.form = form;
+        }
+
+        private final int studentId;
+        private final String fullName;
+        private final Form form;
+    }
+
+    private final StudentStore store;
+    private final AttachmentStore attachments;
+    private final int batchSize;
+    private final int threads;
+    private final BlockingQueue<Ingested> ingestedQueue
+            = new LinkedBlockingQueue<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger failed = new AtomicInteger();
+    private boolean link;
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * In-memory bitmaps of who has which flag and service, one bit per student
+ * id, for answering caseload questions such as "IEP and in group but no
+ * eval" without opening any student. Filters combine tags with and, or, not
+ * and parentheses and are evaluated as whole-bitmap operations. The index
+ * must be told about every student that is loaded or changed through
+ * {@link #update}.
+ *
+ * @author Andrew Burch
+ */
+public class CaseloadIndex {
+
+    public enum Tag {
+
+        IEP("iep"),
+        PLAN_504("504"),
+        EVAL("eval"),
+        INDIVIDUAL("individual"),
+        GROUP("group"),
+        CHECK_IN("checkin");
+
+        Tag(String word) {
+            this.word = word;
+        }
+
+        public String getWord() {
+            return word;
+        }
+
+        /**
+         * Whether student currently has this tag.
+         */
+        public boolean of(Student student) {
+            switch (this) {
+                case IEP:
+                    return student.getIEP();
+                case PLAN_504:
+                    return student.get504();
+                case EVAL:
+                    return student.getEval();
+                case INDIVIDUAL:
+                    return active(student.getStartInd(), student.getEndInd());
+                case GROUP:
+                    return active(student.getStartGroup(),
+                            student.getEndGroup());
+                default:
+                    return active(student.getStartCheckIn(),
+                            student.getEndCheckIn());
+            }
+        }
+
+        private final String word;
+    }
+
+    /**
+     * A filter can be run over a whole index, or tested against one student
+     * where no index is kept, such as while streaming an export.
+     */
+    public interface Filter {
+
+        BitSet apply(CaseloadIndex index);
+
+        boolean test(Student student);
+    }
+
+    public CaseloadIndex() {
+        for (Tag tag : Tag.values()) {
+            bitmaps.put(tag, new BitSet());
+        }
+    }
+
+    /**
+     * Sets student's bits from their current flags and service dates. A
+     * service is active once started until an end date on or after the
+     * start is set.
+     */
+    public synchronized void update(Student student) {
+        int id = student.getId();
+        while (names.size() <= id) {
+            names.add(null);
+        }
+        names.set(id, student.getFullName());
+        students.set(id);
+        for (Tag tag : Tag.values()) {
+            bitmaps.get(tag).set(id, tag.of(student));
+        }
+    }
+
+    public synchronized void remove(int id) {
+        students.clear(id);
+        for (BitSet bitmap : bitmaps.values()) {
+            bitmap.clear(id);
+        }
+    }
+
+    /**
+     * Returns the ids of the students matching filter.
+     */
+    public synchronized BitSet select(Filter filter) {
+        return filter.apply(this);
+    }
+
+    /**
+     * Returns the full names of the students matching filter, in id order.
+     */
+    public synchronized List<String> names(Filter filter) {
+        BitSet ids = filter.apply(this);
+        List<String> matches = new ArrayList<>(ids.cardinality());
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            matches.add(names.get(id));
+        }
+        return matches;
+    }
+
+    public synchronized int size() {
+        return students.cardinality();
+    }
+
+    public static Filter has(Tag tag) {
+        return new Filter() {
+            @Override
+            public BitSet apply(CaseloadIndex index) {
+                return (BitSet) index.bitmaps.get(tag).clone();
+            }
+
+            @Override
+            public boolean test(Student student) {
+                return tag.of(student);
+            }
+        };
+    }
+
+    public static Filter and(Filter left, Filter right) {
+        return new Filter() {
+            @Override
+            public BitSet apply(CaseloadIndex index) {
+                BitSet ids = left.apply(index);
+                ids.and(right.apply(index));
+                return ids;
+            }
+
+            @Override
+            public boolean test(Student student) {
+                return left.test(student) && right.test(student);
+            }
+        };
+    }
+
+    public static Filter or(Filter left, Filter right) {
+        return new Filter() {
+            @Override
+            public BitSet apply(CaseloadIndex index) {
+                BitSet ids = left.apply(index);
+                ids.or(right.apply(index));
+                return ids;
+            }
+
+            @Override
+            public boolean test(Student student) {
+                return left.test(student) || right.test(student);
+            }
+        };
+    }
+
+    public static Filter not(Filter filter) {
+        return new Filter() {
+            @Override
+            public BitSet apply(CaseloadIndex index) {
+                BitSet ids = (BitSet) index.students.clone();
+                ids.andNot(filter.apply(index));
+                return ids;
+            }
+
+            @Override
+            public boolean test(Student student) {
+                return !filter.test(student);
+            }
+        };
+    }
+
+    /**
+     * Parses a filter such as "iep and group and not eval" or
+     * "(504 or iep) and checkin". Not binds tightest, then and, then or.
+     *
+     * @throws ParseException if text is not a filter.
+     */
+    public static Filter parse(String text) throws ParseException {
+        Parser parser = new Parser(text);
+        Filter filter = parser.or();
+        if (parser.token != null) {
+            throw new ParseException("Unexpected \"" + parser.token + "\"",
+                    parser.start);
+        }
+        return filter;
+    }
+
+    static boolean active(int start, int end) {
+        return start != Dates.UNSET && (end == Dates.UNSET || end < start);
+    }
+
+    /**
+     * Recursive descent over the words of a filter, one token of lookahead.
+     */
+    private static final class Parser {
+
+        Parser(String text) {
+            this.text = text;
+            next();
+        }
+
+        Filter or() throws ParseException {
+            Filter filter = and();
+            while ("or".equals(token)) {
+                next();
+                filter = CaseloadIndex.or(filter, and());
+            }
+            return filter;
+        }
+
+        Filter and() throws ParseException {
+            Filter filter = not();
+            while ("and".equals(token)) {
+                next();
+                filter = CaseloadIndex.and(filter, not());
+            }
+            return filter;
+        }
+
+        Filter not() throws ParseException {
+            if ("not".equals(token)) {
+                next();
+                return CaseloadIndex.not(not());
+            }
+            if ("(".equals(token)) {
+                next();
+                Filter filter = or();
+                if (!")".equals(token)) {
+                    throw new ParseException("Missing \")\"", start);
+                }
+                next();
+                return filter;
+            }
+            if (token == null) {
+                throw new ParseException("Filter ends too soon", start);
+            }
+            for (Tag tag : Tag.values()) {
+                if (tag.getWord().equals(token)) {
+                    next();
+                    return has(tag);
+                }
+            }
+            throw new ParseException("Unknown tag \"" + token + "\"", start);
+        }
+
+        private void next() {
+            while (end < text.length()
+                    && Character.isWhitespace(text.charAt(end))) {
+                end++;
+            }
+            start = end;
+            if (end == text.length()) {
+                token = null;
+                return;
+            }
+            char c = text.charAt(end);
+            if (c == '(' || c == ')') {
+                end++;
+            } else {
+                while (end < text.length()
+                        && !Character.isWhitespace(text.charAt(end))
+                        && text.charAt(end) != '('
+                        && text.charAt(end) != ')') {
+                    end++;
+                }
+            }
+            token = text.substring(start, end).toLowerCase(Locale.ROOT);
+        }
+
+        private final String text;
+        private String token;
+        private int start = 0;
+        private int end = 0;
+    }
+
+    private final Map<Tag, BitSet> bitmaps = new EnumMap<>(Tag.class);
+    private final BitSet students = new BitSet();
+    private final List<String> names = new ArrayList<>();
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caseload totals kept up to date as students change, so a report is a few
+ * map lookups instead of a scan. For every student the report remembers what
+ * they last contributed (flags, active services, form count and walk-in
+ * dates); {@link #update} takes that away and adds the new contribution, so
+ * each change costs only the student's own walk-ins.
+ *
+ * @author Andrew Burch
+ */
+public class CaseloadReport {
+
+    /**
+     * Replaces the totals with one pass over every stored student. Returns
+     * the number of students read.
+     */
+    public int rebuild(StudentStore store) throws SQLException {
+        synchronized (this) {
+            contributions.clear();
+            Arrays.fill(tagTotals, 0);
+            formTotal = 0;
+            studentsWithForms = 0;
+            walkInsByDay.clear();
+            walkInsByWeek.clear();
+            walkInsByMonth.clear();
+        }
+        return store.loadAll(REBUILD_FETCH_SIZE, this::update);
+    }
+
+    /**
+     * Brings the totals in line with student's current record.
+     */
+    public synchronized void update(Student student) {
+        Contribution now = new Contribution(student);
+        Contribution before = contributions.put(student.getId(), now);
+        if (before != null) {
+            count(before, -1);
+            countWalkIns(before.walkIns, now.walkIns);
+        } else {
+            countWalkIns(NO_WALK_INS, now.walkIns);
+        }
+        count(now, 1);
+    }
+
+    /**
+     * Takes a student who has left the caseload out of the totals.
+     */
+    public synchronized void remove(int id) {
+        Contribution before = contributions.remove(id);
+        if (before != null) {
+            count(before, -1);
+            countWalkIns(before.walkIns, NO_WALK_INS);
+        }
+    }
+
+    public synchronized int getStudentCount() {
+        return contributions.size();
+    }
+
+    /**
+     * Number of students with tag: a flag, or a service that is active.
+     */
+    public synchronized int getTotal(CaseloadIndex.Tag tag) {
+        return tagTotals[tag.ordinal()];
+    }
+
+    public synchronized int getFormTotal() {
+        return formTotal;
+    }
+
+    public synchronized int getStudentsWithForms() {
+        return studentsWithForms;
+    }
+
+    public synchronized int getWalkInsOn(int day) {
+        return walkInsByDay.getOrDefault(day, 0);
+    }
+
+    /**
+     * Walk-ins in the Monday to Sunday week holding day.
+     */
+    public synchronized int getWalkInsInWeekOf(int day) {
+        return walkInsByWeek.getOrDefault(week(day), 0);
+    }
+
+    public synchronized int getWalkInsInMonthOf(int day) {
+        return walkInsByMonth.getOrDefault(month(day), 0);
+    }
+
+    /**
+     * Returns the report as text for the given day.
+     */
+    public synchronized String format(int day) {
+        LocalDate date = LocalDate.ofEpochDay(day);
+        StringBuilder report = new StringBuilder();
+        report.append("Caseload report for ").append(Dates.format(day))
+                .append("\n\nStudents: ").append(getStudentCount())
+                .append("\n\nActive services")
+                .append("\n  Individual: ")
+                .append(getTotal(CaseloadIndex.Tag.INDIVIDUAL))
+                .append("\n  Group: ").append(getTotal(CaseloadIndex.Tag.GROUP))
+                .append("\n  Check-in: ")
+                .append(getTotal(CaseloadIndex.Tag.CHECK_IN))
+                .append("\n\nFlags")
+                .append("\n  IEP: ").append(getTotal(CaseloadIndex.Tag.IEP))
+                .append("\n  504: ").append(getTotal(CaseloadIndex.Tag.PLAN_504))
+                .append("\n  Eval: ").append(getTotal(CaseloadIndex.Tag.EVAL))
+                .append("\n\nWalk-ins")
+                .append("\n  Today: ").append(getWalkInsOn(day))
+                .append("\n  This week: ").append(getWalkInsInWeekOf(day))
+                .append("\n  This month: ").append(getWalkInsInMonthOf(day));
+        for (int i = 1; i <= 11; i++) {
+            LocalDate earlier = date.minusMonths(i);
+            report.append("\n  ").append(earlier.getMonth()).append(' ')
+                    .append(earlier.getYear()).append(": ")
+                    .append(getWalkInsInMonthOf((int) earlier.toEpochDay()));
+        }
+        report.append("\n\nForms on file: ").append(getFormTotal())
+                .append(" for ").append(getStudentsWithForms())
+                .append(" students");
+        return report.toString();
+    }
+
+    private void count(Contribution contribution, int sign) {
+        for (CaseloadIndex.Tag tag : CaseloadIndex.Tag.values()) {
+            if ((contribution.tags & (1 << tag.ordinal())) != 0) {
+                tagTotals[tag.ordinal()] += sign;
+            }
+        }
+        formTotal += sign * contribution.forms;
+        if (contribution.forms > 0) {
+            studentsWithForms += sign;
+        }
+    }
+
+    /**
+     * Applies the change from one sorted list of walk-in days to another,
+     * touching only the days that differ.
+     */
+    private void countWalkIns(int[] before, int[] after) {
+        int i = 0;
+        int j = 0;
+        while (i < before.length || j < after.length) {
+            if (j == after.length
+                    || (i < before.length && before[i] < after[j])) {
+                countWalkIn(before[i++], -1);
+            } else if (i == before.length || after[j] < before[i]) {
+                countWalkIn(after[j++], 1);
+            } else {
+                i++;
+                j++;
+            }
+        }
+    }
+
+    private void countWalkIn(int day, int sign) {
+        walkInsByDay.merge(day, sign, Integer::sum);
+        walkInsByWeek.merge(week(day), sign, Integer::sum);
+        walkInsByMonth.merge(month(day), sign, Integer::sum);
+    }
+
+    private static int week(int day) {
+        //Epoch day 0 was a Thursday; weeks start on Monday.
+        return Math.floorDiv(day + 3, 7);
+    }
+
+    private static int month(int day) {
+        LocalDate date = LocalDate.ofEpochDay(day);
+        return date.getYear() * 12 + date.getMonthValue() - 1;
+    }
+
+    /**
+     * What one student adds to the totals.
+     */
+    private static final class Contribution {
+
+        Contribution(Student student) {
+            int bits = 0;
+            for (CaseloadIndex.Tag tag : CaseloadIndex.Tag.values()) {
+                if (tag.of(student)) {
+                    bits |= 1 << tag.ordinal();
+                }
+            }
+            this.tags = bits;
+            this.forms = student.getFormCount();
+            this.walkIns = student.getWalkIns();
+        }
+
+        private final int tags;
+        private final int forms;
+        private final int[] walkIns;
+    }
+
+    private static final int REBUILD_FETCH_SIZE = 1000;
+    private static final int[] NO_WALK_INS = new int[0];
+
+    private final Map<Integer, Contribution> contributions = new HashMap<>();
+    private final int[] tagTotals = new int[CaseloadIndex.Tag.values().length];
+    private int formTotal = 0;
+    private int studentsWithForms = 0;
+    private final Map<Integer, Integer> walkInsByDay = new HashMap<>();
+    private final Map<Integer, Integer> walkInsByWeek = new HashMap<>();
+    private final Map<Integer, Integer> walkInsByMonth = new HashMap<>();
+}
@@ -0,0 +1,16 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+/**
+ * Columns of the students table that the application reads and writes.
+ *
+ * @author Andrew Burch
+ */
+enum Category {
+    fullName, firstName, lastName, indStart, indEnd, groupStart, groupEnd,
+    checkInStart, checkInEnd, walkIns, forms, notes, hasIEP, has504, hasEval
+}
@@ -0,0 +1,629 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary journal of every change made to a student column, with
+ * the column's old and new values, kept so that a change made in the GUI
+ * survives a crash before the {@link WriteQueue} writes it to the database,
+ * and so a student can be read back as they stood at any earlier time.
+ * <p>
+ * Each entry is written to the file as soon as it is appended, so it
+ * survives the application crashing; forcing it to disk, which is what
+ * makes it survive the machine losing power, is batched. A sync thread
+ * forces every entry appended so far once syncMillis have passed or
+ * syncEntries entries are waiting, whichever comes first, so one fsync
+ * commits a whole group of changes and a checkbox click never waits for
+ * one.
+ * <p>
+ * The file is a four byte magic number followed by entries, each an int
+ * payload length, the payload's CRC-32 and the payload: sequence number,
+ * time in epoch milliseconds, student id, column name, old value and new
+ * value. A torn entry at the end, left by a crash mid-append, is cut off
+ * when the journal is opened. Once the file has grown past
+ * {@link #ROTATE_BYTES} and every change in it is in the database, it is
+ * moved aside as a segment named after the sequence number and time of
+ * its last change, so startup only replays the live file and
+ * {@link #readAsOf} only reads the segments it needs.
+ *
+ * @author Andrew Burch
+ */
+public class ChangeJournal implements AutoCloseable {
+
+    /**
+     * Size past which the live file is moved aside at the next checkpoint.
+     */
+    public static final long ROTATE_BYTES = 4 * 1024 * 1024;
+
+    public static final class Change {
+
+        Change(long seq, long time, int studentId, Category cat,
+                Object oldValue, Object newValue) {
+            this.seq = seq;
+            this.time = time;
+            this.studentId = studentId;
+            this.cat = cat;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public int getStudentId() {
+            return studentId;
+        }
+
+        public Category getCategory() {
+            return cat;
+        }
+
+        /**
+         * The column's value before the change, in the form
+         * {@link Student#getColumn} returns it.
+         */
+        public Object getOldValue() {
+            return oldValue;
+        }
+
+        public Object getNewValue() {
+            return newValue;
+        }
+
+        private final long seq;
+        private final long time;
+        private final int studentId;
+        private final Category cat;
+        private final Object oldValue;
+        private final Object newValue;
+    }
+
+    /**
+     * Opens or creates the journal at path, forcing appended entries to
+     * disk at least every syncMillis, or sooner once syncEntries are
+     * waiting.
+     */
+    public ChangeJournal(Path path, long syncMillis, int syncEntries)
+            throws IOException {
+        this.path = path;
+        this.syncEntries = syncEntries;
+        this.channel = openLive();
+        long[] end = new long[3];
+        scan(path, channel.size(), change -> {
+        }, end);
+        if (end[0] < channel.size()) {
+            System.err.println("Cutting torn entry off " + path + " at "
+                    + end[0] + " of " + channel.size() + " bytes");
+            channel.truncate(end[0]);
+            channel.force(true);
+        }
+        channel.position(end[0]);
+        lastSeq = end[1];
+        lastTime = end[2];
+        syncedSeq = lastSeq;
+        this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "journal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(this::syncQuietly, syncMillis,
+                syncMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Appends a change to cat of the student with the given id and returns
+     * its sequence number. The entry is in the file when this returns, and
+     * on disk once the next group is synced. If the entry cannot be written
+     * whole, the file is cut back to where it started, and if even that
+     * fails the journal refuses any more entries rather than leave good
+     * ones after a torn one.
+     */
+    public long append(int studentId, Category cat, Object oldValue,
+            Object newValue) throws IOException {
+        long seq;
+        int waiting;
+        synchronized (this) {
+            if (failed) {
+                throw new IOException(path + " could not be written and is "
+                        + "closed to new changes.");
+            }
+            long time = System.currentTimeMillis();
+            ByteBuffer entry = ByteBuffer.wrap(encode(new Change(lastSeq + 1,
+                    time, studentId, cat, oldValue, newValue)));
+            long start = channel.position();
+            try {
+                while (entry.hasRemaining()) {
+                    channel.write(entry);
+                }
+            } catch (IOException io) {
+                try {
+                    channel.truncate(start);
+                    channel.position(start);
+                } catch (IOException truncate) {
+                    failed = true;
+                    System.err.println("Could not cut torn entry off " + path
+                            + ": " + truncate);
+                }
+                throw io;
+            }
+            seq = ++lastSeq;
+            lastTime = time;
+            waiting = (int) (lastSeq - syncedSeq);
+        }
+        if (waiting >= syncEntries && !syncer.isShutdown()) {
+            syncer.execute(this::syncQuietly);
+        }
+        return seq;
+    }
+
+    /**
+     * Forces every entry appended so far to disk, once for all of them.
+     */
+    public void sync() throws IOException {
+        long upTo;
+        synchronized (this) {
+            upTo = lastSeq;
+        }
+        synchronized (syncLock) {
+            if (upTo <= syncedSeq) {
+                return;
+            }
+            //Appends carry on while the disk catches up.
+            channel.force(false);
+            syncedSeq = upTo;
+        }
+    }
+
+    /**
+     * Passes every change in the live file after afterSeq to apply, in
+     * order, and makes sure later appends are numbered after afterSeq even
+     * if the file was lost or moved aside. Returns the number of changes
+     * passed.
+     */
+    public int replay(long afterSeq, Consumer<Change> apply)
+            throws IOException {
+        int replayed = readAfter(path, size(), afterSeq, apply);
+        synchronized (this) {
+            if (lastSeq < afterSeq) {
+                lastSeq = afterSeq;
+            }
+        }
+        if (replayed > 0) {
+            System.out.println("Replayed " + replayed + " changes from "
+                    + path);
+        }
+        return replayed;
+    }
+
+    /**
+     * Passes every change in the journal at path made after afterSeq to
+     * apply, in order, and returns how many there were. Only reads the
+     * file, so it is safe while the application is appending to it; an
+     * entry still being appended is ignored. Segments are not read, as
+     * nothing is moved aside before it is in the database.
+     */
+    public static int readAfter(Path path, long afterSeq,
+            Consumer<Change> apply) throws IOException {
+        try {
+            return readAfter(path, Files.size(path), afterSeq, apply);
+        } catch (NoSuchFileException nsf) {
+            return 0;
+        }
+    }
+
+    /**
+     * Records that every change up to seq is in the database. If the live
+     * file is over {@link #ROTATE_BYTES} and holds nothing later, it is
+     * moved aside as a segment and a new live file started.
+     */
+    public void checkpoint(long seq) throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (failed || lastSeq > seq
+                        || channel.position() < ROTATE_BYTES) {
+                    return;
+                }
+                //The sequence number keeps two segments from sharing a name.
+                Path segment = path.resolveSibling(path.getFileName() + "."
+                        + lastSeq + "-" + lastTime);
+                channel.force(true);
+                channel.close();
+                try {
+                    Files.move(path, segment, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    //A new live file, or the old one if it could not move.
+                    channel = openLive();
+                    channel.position(channel.size());
+                }
+                syncedSeq = lastSeq;
+                System.out.println("Moved " + lastSeq + " journaled changes "
+                        + "to " + segment.getFileName());
+            }
+        }
+    }
+
+    /**
+     * Returns the value of every column of the student with the given id
+     * that has been journaled as changed since time, as it stood at time:
+     * the old value of the first change after it. Columns left out have not
+     * changed in the GUI since, so their current values were already theirs
+     * at time. Only reads the journal at path, and the segments holding
+     * changes after time, so it is safe while the application is appending
+     * to it; an entry still being appended is ignored.
+     */
+    public static Map<Category, Object> readAsOf(Path path, int studentId,
+            long time) throws IOException {
+        Map<Category, Change> first = new EnumMap<>(Category.class);
+        Consumer<Change> visit = change -> {
+            if (change.studentId != studentId || change.time <= time) {
+                return;
+            }
+            Change earliest = first.get(change.cat);
+            if (earliest == null || change.seq < earliest.seq) {
+                first.put(change.cat, change);
+            }
+        };
+        Set<Path> read = new HashSet<>();
+        for (Path segment : segments(path, time)) {
+            read.add(segment);
+            scan(segment, Files.size(segment), visit, new long[3]);
+        }
+        try {
+            scan(path, Files.size(path), visit, new long[3]);
+        } catch (NoSuchFileException nsf) {
+            //Moved aside meanwhile; picked up with the segments below.
+        }
+        for (Path segment : segments(path, time)) {
+            if (read.add(segment)) {
+                scan(segment, Files.size(segment), visit, new long[3]);
+            }
+        }
+        Map<Category, Object> values = new EnumMap<>(Category.class);
+        for (Map.Entry<Category, Change> entry : first.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().oldValue);
+        }
+        return values;
+    }
+
+    @Override
+    public void close() {
+        syncer.shutdown();
+        try {
+            syncer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        syncQuietly();
+        try {
+            channel.close();
+        } catch (IOException io) {
+            System.err.println("Could not close " + path + ": " + io);
+        }
+    }
+
+    /**
+     * Opens the live file, starting it with the magic number if it is new.
+     */
+    private FileChannel openLive() throws IOException {
+        FileChannel live = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (live.size() == 0) {
+            live.write(ByteBuffer.wrap(MAGIC));
+            live.force(true);
+        }
+        return live;
+    }
+
+    private static int readAfter(Path file, long size, long afterSeq,
+            Consumer<Change> apply) throws IOException {
+        int[] read = new int[1];
+        scan(file, size, change -> {
+            if (change.seq > afterSeq) {
+                apply.accept(change);
+                read[0]++;
+            }
+        }, new long[3]);
+        return read[0];
+    }
+
+    /**
+     * Returns the segments moved aside from the journal at path whose last
+     * change was made after time.
+     */
+    private static List<Path> segments(Path path, long time)
+            throws IOException {
+        List<Path> segments = new ArrayList<>();
+        Path folder = path.toAbsolutePath().getParent();
+        String prefix = path.getFileName() + ".";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder,
+                prefix + "*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    long last = Long.parseLong(name.substring(
+                            name.indexOf('-', prefix.length()) + 1));
+                    if (last > time) {
+                        segments.add(file);
+                    }
+                } catch (NumberFormatException nfe) {
+                    //Not a segment.
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Reads every whole, intact entry in the first size bytes of file,
+     * passing each to visit, and leaves the end of the last one in end[0],
+     * its sequence number in end[1] and its time in end[2]. Reads through
+     * its own channel, so appends go on meanwhile.
+     */
+    private static void scan(Path file, long size, Consumer<Change> visit,
+            long[] end) throws IOException {
+        if (size < MAGIC.length) {
+            //Only just created; nothing written yet.
+            end[0] = size;
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new BoundedInput(Channels.newInputStream(FileChannel.open(
+                        file, StandardOpenOption.READ)), size),
+                64 * 1024))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a change journal.");
+            }
+            long position = MAGIC.length;
+            CRC32 crc = new CRC32();
+            try {
+                while (position < size) {
+                    int length = in.readInt();
+                    long checksum = in.readInt() & 0xffffffffL;
+                    if (length <= 0
+                            || length > size - position - ENTRY_HEADER) {
+                        break;
+                    }
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if (crc.getValue() != checksum) {
+                        break;
+                    }
+                    Change change = decode(payload);
+                    position += ENTRY_HEADER + length;
+                    end[1] = change.seq;
+                    end[2] = change.time;
+                    visit.accept(change);
+                }
+            } catch (EOFException eof) {
+                //A torn entry; everything before it is good.
+            }
+            end[0] = position;
+        }
+    }
+
+    /**
+     * Returns the size of the file up to the end of the last whole entry.
+     */
+    private synchronized long size() throws IOException {
+        return channel.position();
+    }
+
+    private static byte[] encode(Change change) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeLong(change.seq);
+        payload.writeLong(change.time);
+        payload.writeInt(change.studentId);
+        payload.writeUTF(change.cat.name());
+        writeValue(payload, change.oldValue);
+        writeValue(payload, change.newValue);
+        payload.flush();
+        byte[] body = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER + body.length);
+        entry.putInt(body.length).putInt((int) crc.getValue()).put(body);
+        return entry.array();
+    }
+
+    private static Change decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                payload));
+        long seq = in.readLong();
+        long time = in.readLong();
+        int studentId = in.readInt();
+        Category cat;
+        try {
+            cat = Category.valueOf(in.readUTF());
+        } catch (IllegalArgumentException iae) {
+            throw new IOException("Unknown column in journal entry " + seq);
+        }
+        return new Change(seq, time, studentId, cat, readValue(in),
+                readValue(in));
+    }
+
+    /**
+     * Writes a column value: null, a Boolean flag, an Integer epoch day,
+     * notes as a String, walk-ins as an int[] or forms as a collection of
+     * Form, each behind a one byte tag.
+     */
+    @SuppressWarnings("unchecked")
+    private static void writeValue(DataOutputStream out, Object value)
+            throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            byte[] utf8 = ((String) value).getBytes("UTF-8");
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        } else if (value instanceof int[]) {
+            int[] days = (int[]) value;
+            out.writeByte(DAYS);
+            out.writeInt(days.length);
+            for (int day : days) {
+                out.writeInt(day);
+            }
+        } else if (value instanceof Collection) {
+            Collection<Form> forms = (Collection<Form>) value;
+            out.writeByte(FORMS);
+            out.writeInt(forms.size());
+            for (Form form : forms) {
+                out.writeUTF(form.getFileName());
+                out.writeLong(form.getSize());
+                out.writeLong(form.getModified());
+                out.writeUTF(form.getHash() == null ? "" : form.getHash());
+            }
+        } else {
+            throw new IOException("Cannot journal a "
+                    + value.getClass().getSimpleName());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case BOOLEAN:
+                return in.readBoolean();
+            case INT:
+                return in.readInt();
+            case STRING:
+                byte[] utf8 = new byte[in.readInt()];
+                in.readFully(utf8);
+                return new String(utf8, "UTF-8");
+            case DAYS:
+                int[] days = new int[in.readInt()];
+                for (int i = 0; i < days.length; i++) {
+                    days[i] = in.readInt();
+                }
+                return days;
+            case FORMS:
+                int count = in.readInt();
+                List<Form> forms = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    String fileName = in.readUTF();
+                    long size = in.readLong();
+                    long modified = in.readLong();
+                    String hash = in.readUTF();
+                    forms.add(new Form(fileName, size, modified,
+                            hash.isEmpty() ? null : hash));
+                }
+                return forms;
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (IOException io) {
+            System.err.println("Could not sync " + path + ": " + io);
+        }
+    }
+
+    /**
+     * Reads no further than the size the file had when a scan started, so
+     * an entry being appended meanwhile is left for the next scan.
+     */
+    private static final class BoundedInput extends FilterInputStream {
+
+        BoundedInput(InputStream in, long limit) {
+            super(in);
+            this.left = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+                throws IOException {
+            if (left <= 0) {
+                return -1;
+            }
+            int read = super.read(buffer, offset, (int) Math.min(length,
+                    left));
+            if (read > 0) {
+                left -= read;
+            }
+            return read;
+        }
+
+        private long left;
+    }
+
+    private static final byte[] MAGIC = {'S', 'T', 'J', '1'};
+    private static final int ENTRY_HEADER = 8;
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte INT = 2;
+    private static final byte STRING = 3;
+    private static final byte DAYS = 4;
+    private static final byte FORMS = 5;
+
+    private final Path path;
+    private final int syncEntries;
+    private final ScheduledExecutorService syncer;
+    private final Object syncLock = new Object();
+    private FileChannel channel;
+    private long lastSeq;
+    private long lastTime;
+    private volatile long syncedSeq;
+    private boolean failed = false;
+}
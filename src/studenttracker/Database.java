@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Owns the single long-lived SQLite connection used by the application.
+ * SQLite only allows one writer at a time, so callers share the connection
+ * through {@link #run} and {@link #transaction}, which serialize access and
+ * total how long callers waited for the connection and how long their
+ * statements ran. Only calls slower than {@link #SLOW_MILLIS} are logged.
+ *
+ * @author Andrew Burch
+ */
+public class Database implements AutoCloseable {
+
+    /**
+     * Calls that wait for the connection and run for longer than this in
+     * total are logged one by one.
+     */
+    public static final long SLOW_MILLIS = 50;
+
+    public interface Work<T> {
+
+        T apply(Database db) throws SQLException;
+    }
+
+    public Database(String path) throws SQLException {
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException cnf) {
+            throw new SQLException("Could not find class org.sqlite.JDBC", cnf);
+        }
+        this.url = "jdbc:sqlite:" + path;
+        this.conn = DriverManager.getConnection(url);
+    }
+
+    /**
+     * Runs work against the shared connection in auto-commit mode.
+     */
+    public <T> T run(String label, Work<T> work) throws SQLException {
+        long requested = System.nanoTime();
+        lock.lock();
+        long acquired = System.nanoTime();
+        long finished;
+        try {
+            checkOpen();
+            return work.apply(this);
+        } finally {
+            finished = System.nanoTime();
+            calls++;
+            waitNanos += acquired - requested;
+            runNanos += finished - acquired;
+            lock.unlock();
+            //Log outside the lock, and only the calls worth looking at.
+            if (finished - requested > SLOW_MILLIS * 1000000) {
+                System.out.println(String.format("Slow database call %s: "
+                        + "waited %.2f ms, ran %.2f ms", label,
+                        (acquired - requested) / 1e6,
+                        (finished - acquired) / 1e6));
+            }
+        }
+    }
+
+    /**
+     * Runs work against the shared connection inside a single transaction,
+     * rolling back if any statement fails.
+     */
+    public <T> T transaction(String label, Work<T> work) throws SQLException {
+        return run(label, db -> {
+            conn.setAutoCommit(false);
+            try {
+                T result = work.apply(db);
+                conn.commit();
+                return result;
+            } catch (SQLException | RuntimeException ex) {
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        });
+    }
+
+    /**
+     * Returns a cached prepared statement for sql. Only valid inside
+     * {@link #run} or {@link #transaction}; callers must not close it.
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement prep = statements.get(sql);
+        if (prep == null) {
+            prep = conn.prepareStatement(sql);
+            statements.put(sql, prep);
+        }
+        prep.clearParameters();
+        return prep;
+    }
+
+    /**
+     * Gives raw access to the connection for one-off statements. Only valid
+     * inside {@link #run} or {@link #transaction}.
+     */
+    public Connection connection() {
+        return conn;
+    }
+
+    public String getStats() {
+        lock.lock();
+        try {
+            return String.format("%d database calls, %.1f ms waiting for the "
+                    + "connection, %.1f ms running statements", calls,
+                    waitNanos / 1e6, runNanos / 1e6);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (conn == null) {
+                return;
+            }
+            for (PreparedStatement prep : statements.values()) {
+                try {
+                    prep.close();
+                } catch (SQLException sql) {
+                    System.err.println("Could not close statement: " + sql);
+                }
+            }
+            statements.clear();
+            try {
+                conn.close();
+            } catch (SQLException sql) {
+                System.err.println("Could not close database " + url + ": "
+                        + sql);
+            }
+            conn = null;
+            System.out.println("Closed database: " + getStats());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() throws SQLException {
+        if (conn == null) {
+            throw new SQLException("Database " + url + " is closed.");
+        }
+    }
+
+    private final String url;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private Connection conn;
+    private long calls = 0;
+    private long waitNanos = 0;
+    private long runNanos = 0;
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.util.regex.Pattern;
+
+/**
+ * Converts between the epoch-day ints students store their dates as and the
+ * "MM-dd-yyyy" text shown in the GUI and written to exports.
+ *
+ * @author Andrew Burch
+ */
+public final class Dates {
+
+    /**
+     * Stands in for a date that has not been set.
+     */
+    public static final int UNSET = -1;
+
+    public static final DateTimeFormatter FORMAT = DateTimeFormatter
+            .ofPattern("MM-dd-uuuu").withResolverStyle(ResolverStyle.STRICT);
+
+    public static int today() {
+        return (int) LocalDate.now().toEpochDay();
+    }
+
+    /**
+     * Returns day as "MM-dd-yyyy", or null if it is UNSET.
+     */
+    public static String format(int day) {
+        return day == UNSET ? null : LocalDate.ofEpochDay(day).format(FORMAT);
+    }
+
+    /**
+     * Parses "MM-dd-yyyy" text into an epoch day. Null or empty text is
+     * UNSET.
+     *
+     * @throws DateTimeParseException if text is not a valid date.
+     */
+    public static int parse(String text) {
+        if (text == null || text.isEmpty()) {
+            return UNSET;
+        }
+        return (int) LocalDate.parse(text, FORMAT).toEpochDay();
+    }
+
+    /**
+     * Parses a date typed or imported by a user, which must be written out
+     * in full as "MM-dd-yyyy".
+     *
+     * @throws DateTimeParseException if text is not such a date.
+     */
+    public static int parseEntered(String text) {
+        if (text == null || !ENTERED.matcher(text).matches()) {
+            throw new DateTimeParseException("Expected MM-dd-yyyy",
+                    text == null ? "" : text, 0);
+        }
+        return parse(text);
+    }
+
+    private static final Pattern ENTERED = Pattern.compile(
+            "[0-9][0-9]-[0-9][0-9]-[0-9][0-9][0-9][0-9]");
+
+    private Dates() {
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+
+/**
+ * Writes every stored student to CSV or JSON Lines. Students are streamed
+ * from {@link StudentStore#loadAll} and written one at a time through a
+ * buffer, so memory use does not depend on the size of the table. Exports to
+ * a file go to a temporary file next to it that is renamed over the target
+ * only once it is complete.
+ *
+ * @author Andrew Burch
+ */
+public class Exporter {
+
+    public enum Format {
+
+        CSV, JSONL
+    }
+
+    public Exporter(StudentStore store, Format format, int fetchSize) {
+        this.store = store;
+        this.format = format;
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Only export students matching filter, or everyone if it is null.
+     */
+    public void setFilter(CaseloadIndex.Filter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Only export students with a name starting with prefix, matched the way
+     * the search box matches, or everyone if it is null or empty.
+     */
+    public void setNamePrefix(String prefix) {
+        this.namePrefix = prefix == null || prefix.trim().isEmpty() ? null
+                : NameIndex.normalize(prefix);
+    }
+
+    /**
+     * Also export each student's walk-in dates and forms.
+     */
+    public void setChildren(boolean children) {
+        this.children = children;
+    }
+
+    /**
+     * Exports to target, replacing it atomically. Returns the number of
+     * students written.
+     */
+    public int export(Path target) throws IOException, SQLException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        int count;
+        try (Writer writer = Files.newBufferedWriter(temp,
+                StandardCharsets.UTF_8)) {
+            count = export(writer);
+        } catch (IOException | SQLException | RuntimeException ex) {
+            Files.deleteIfExists(temp);
+            throw ex;
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException amns) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return count;
+    }
+
+    /**
+     * Exports to out, which is flushed but not closed. Returns the number of
+     * students written.
+     */
+    public int export(Writer out) throws IOException, SQLException {
+        BufferedWriter writer = out instanceof BufferedWriter
+                ? (BufferedWriter) out : new BufferedWriter(out, BUFFER_SIZE);
+        long started = System.nanoTime();
+        int[] count = {0};
+        if (format == Format.CSV) {
+            writer.write(CSV_HEADER);
+            if (children) {
+                writer.write(",walkIns,forms");
+            }
+            writer.newLine();
+        }
+        try {
+            store.loadAll(fetchSize, student -> {
+                if (!matches(student)) {
+                    return;
+                }
+                try {
+                    if (format == Format.CSV) {
+                        writeCsv(writer, student);
+                    } else {
+                        writeJson(writer, student);
+                    }
+                    writer.newLine();
+                } catch (IOException io) {
+                    throw new UncheckedIOException(io);
+                }
+                count[0]++;
+            });
+        } catch (UncheckedIOException uio) {
+            throw uio.getCause();
+        }
+        writer.flush();
+        System.out.println("Exported " + count[0] + " students in "
+                + (System.nanoTime() - started) / 1000000 + " ms");
+        return count[0];
+    }
+
+    private boolean matches(Student student) {
+        if (filter != null && !filter.test(student)) {
+            return false;
+        }
+        if (namePrefix == null) {
+            return true;
+        }
+        String name = NameIndex.normalize(student.getFullName());
+        int start = 0;
+        while (!name.startsWith(namePrefix, start)) {
+            int space = name.indexOf(' ', start);
+            if (space < 0) {
+                return false;
+            }
+            start = space + 1;
+        }
+        return true;
+    }
+
+    private void writeCsv(Writer writer, Student student) throws IOException {
+        writer.write(Integer.toString(student.getId()));
+        writeCsvField(writer, student.getFullName());
+        writeCsvField(writer, student.getFirstName());
+        writeCsvField(writer, student.getLastName());
+        writeCsvField(writer, day(student.getStartInd()));
+        writeCsvField(writer, day(student.getEndInd()));
+        writeCsvField(writer, day(student.getStartGroup()));
+        writeCsvField(writer, day(student.getEndGroup()));
+        writeCsvField(writer, day(student.getStartCheckIn()));
+        writeCsvField(writer, day(student.getEndCheckIn()));
+        writeCsvField(writer, student.getNotes());
+        writeCsvField(writer, Boolean.toString(student.getIEP()));
+        writeCsvField(writer, Boolean.toString(student.get504()));
+        writeCsvField(writer, Boolean.toString(student.getEval()));
+        if (children) {
+            StringBuilder walkIns = new StringBuilder();
+            for (int day : student.getWalkIns()) {
+                if (walkIns.length() > 0) {
+                    walkIns.append(';');
+                }
+                walkIns.append(Dates.format(day));
+            }
+            writeCsvField(writer, walkIns.toString());
+            writeCsvField(writer, String.join(";", student.getFormNames()));
+        }
+    }
+
+    private static void writeCsvField(Writer writer, String value)
+            throws IOException {
+        writer.write(',');
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    private void writeJson(Writer writer, Student student) throws IOException {
+        writer.write("{\"id\":");
+        writer.write(Integer.toString(student.getId()));
+        writeJsonField(writer, "fullName", student.getFullName());
+        writeJsonField(writer, "firstName", student.getFirstName());
+        writeJsonField(writer, "lastName", student.getLastName());
+        writeJsonField(writer, "indStart", Dates.format(student.getStartInd()));
+        writeJsonField(writer, "indEnd", Dates.format(student.getEndInd()));
+        writeJsonField(writer, "groupStart",
+                Dates.format(student.getStartGroup()));
+        writeJsonField(writer, "groupEnd", Dates.format(student.getEndGroup()));
+        writeJsonField(writer, "checkInStart",
+                Dates.format(student.getStartCheckIn()));
+        writeJsonField(writer, "checkInEnd",
+                Dates.format(student.getEndCheckIn()));
+        writeJsonField(writer, "notes", student.getNotes());
+        writer.write(",\"hasIEP\":" + student.getIEP() + ",\"has504\":"
+                + student.get504() + ",\"hasEval\":" + student.getEval());
+        if (children) {
+            writer.write(",\"walkIns\":[");
+            int[] walkIns = student.getWalkIns();
+            for (int i = 0; i < walkIns.length; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writeJsonString(writer, Dates.format(walkIns[i]));
+            }
+            writer.write("],\"forms\":[");
+            boolean first = true;
+            for (Form form : student.getForms()) {
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+                writer.write("{\"fileName\":");
+                writeJsonString(writer, form.getFileName());
+                writer.write(",\"size\":" + form.getSize() + ",\"modified\":"
+                        + form.getModified());
+                writeJsonField(writer, "hash", form.getHash());
+                writer.write('}');
+            }
+            writer.write(']');
+        }
+        writer.write('}');
+    }
+
+    private static void writeJsonField(Writer writer, String name,
+            String value) throws IOException {
+        writer.write(",\"");
+        writer.write(name);
+        writer.write("\":");
+        writeJsonString(writer, value);
+    }
+
+    private static void writeJsonString(Writer writer, String value)
+            throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+
+    private static String day(int day) {
+        return day == Dates.UNSET ? "" : Dates.format(day);
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String CSV_HEADER = StudentStore.COLUMNS.replace(
+            " ", "");
+
+    private final StudentStore store;
+    private final Format format;
+    private final int fetchSize;
+    private CaseloadIndex.Filter filter = null;
+    private String namePrefix = null;
+    private boolean children = false;
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies large files, such as scanned packets on a network share, on its
+ * own threads so the GUI never waits on them. Copies are streamed in chunks,
+ * hashing each chunk on its way through and reporting progress and checking
+ * for cancellation between chunks, into a partial file that is forced to
+ * disk and checked against the source's size before it is renamed over the
+ * target. The source is read once. A cancelled or failed copy leaves the
+ * target untouched.
+ *
+ * @author Andrew Burch
+ */
+public class FileTransfer implements AutoCloseable {
+
+    public interface Progress {
+
+        void update(long copied, long total);
+    }
+
+    /**
+     * Transfer work, given the progress to report to.
+     */
+    public interface Work<T> {
+
+        T run(Progress progress) throws Exception;
+    }
+
+    public static final class Result {
+
+        Result(long size, String hash, long nanos) {
+            this.size = size;
+            this.hash = hash;
+            this.nanos = nanos;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * SHA-256 of the copy as written.
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        public double getBytesPerSecond() {
+            return nanos == 0 ? 0 : size * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Copied " + size + " bytes in " + nanos / 1000000 + " ms ("
+                    + Math.round(getBytesPerSecond() / (1024 * 1024))
+                    + " MB/s)";
+        }
+
+        private final long size;
+        private final String hash;
+        private final long nanos;
+    }
+
+    /**
+     * A submitted transfer, which can be cancelled until it finishes.
+     */
+    public static final class Task<T> {
+
+        /**
+         * Completes with the work's result, or exceptionally with a
+         * {@link CancellationException} if the transfer was cancelled.
+         */
+        public CompletableFuture<T> getResult() {
+            return result;
+        }
+
+        /**
+         * Stops the transfer at the end of the current chunk, or before it
+         * starts, and deletes whatever was partly written.
+         */
+        public void cancel() {
+            result.cancel(false);
+            Future<?> started = running;
+            if (started != null) {
+                started.cancel(true);
+            }
+        }
+
+        public boolean isCancelled() {
+            return result.isCancelled();
+        }
+
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private volatile Future<?> running;
+    }
+
+    public FileTransfer(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "transfer-"
+                    + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs work on a transfer thread.
+     */
+    public <T> Task<T> submit(Work<T> work, Progress progress) {
+        Task<T> task = new Task<>();
+        task.running = executor.submit(() -> {
+            try {
+                task.result.complete(work.run(progress));
+            } catch (Throwable ex) {
+                task.result.completeExceptionally(ex);
+            }
+        });
+        return task;
+    }
+
+    /**
+     * Copies source to target on the calling thread, replacing target only
+     * once the copy is complete and verified. If expectedHash is not null
+     * the copy must hash to it. An interrupt cancels the copy. Copies made
+     * with progress reporting are logged.
+     *
+     * @throws IOException if the copy fails, is cancelled, comes out the
+     * wrong size or hashes to something other than expectedHash.
+     */
+    public static Result copy(Path source, Path target, String expectedHash,
+            Progress progress) throws IOException {
+        long started = System.nanoTime();
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        MessageDigest digest = sha256();
+        try {
+            long size;
+            try (FileChannel in = FileChannel.open(source,
+                    StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(part,
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING,
+                            StandardOpenOption.WRITE)) {
+                size = in.size();
+                long copied = 0;
+                ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+                while (copied < size) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Copy of " + source
+                                + " cancelled.");
+                    }
+                    chunk.clear();
+                    int read = in.read(chunk);
+                    if (read <= 0) {
+                        break;
+                    }
+                    digest.update(chunk.array(), 0, read);
+                    chunk.flip();
+                    while (chunk.hasRemaining()) {
+                        out.write(chunk);
+                    }
+                    copied += read;
+                    if (progress != null) {
+                        progress.update(copied, size);
+                    }
+                }
+                out.force(true);
+                if (copied != size || out.size() != size
+                        || in.size() != size) {
+                    throw new IOException("Copy of " + source + " is "
+                            + out.size() + " bytes but the source is "
+                            + in.size() + ".");
+                }
+            }
+            String hash = Form.toHex(digest.digest());
+            if (expectedHash != null && !expectedHash.equals(hash)) {
+                throw new IOException("Copy of " + source + " does not match "
+                        + "its expected hash.");
+            }
+            try {
+                Files.move(part, target, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException amns) {
+                Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Result result = new Result(size, hash, System.nanoTime()
+                    - started);
+            //Bulk callers pass no progress and summarize their own copies.
+            if (progress != null) {
+                System.out.println(result + " from " + source);
+            }
+            return result;
+        } finally {
+            Files.deleteIfExists(part);
+        }
+    }
+
+    /**
+     * Returns the SHA-256 of file as hex, for files that are not copied,
+     * such as those the {@link AttachmentStore} links to.
+     */
+    static String hash(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Hash of " + file
+                            + " cancelled.");
+                }
+                digest.update(buffer, 0, read);
+            }
+        }
+        return Form.toHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsa) {
+            throw new IOException(nsa);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ExecutorService executor;
+}
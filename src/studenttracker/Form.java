@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+/**
+ * A form file attached to a student: its name in the student's folder, its
+ * size and modification time, and a SHA-256 hash of its contents. Size,
+ * time and hash are unknown (-1, -1, null) for forms recorded before they
+ * were tracked.
+ *
+ * @author Andrew Burch
+ */
+public final class Form {
+
+    public Form(String fileName, long size, long modified, String hash) {
+        this.fileName = fileName;
+        this.size = size;
+        this.modified = modified;
+        this.hash = hash;
+    }
+
+    public Form(String fileName) {
+        this(fileName, -1, -1, null);
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return fileName;
+    }
+
+    private final String fileName;
+    private final long size;
+    private final long modified;
+    private final String hash;
+}
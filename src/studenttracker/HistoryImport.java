@@ -0,0 +1,476 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bulk import of historical service dates and walk-ins from a tab- or
+ * comma-separated file. The first line names the columns, in any order and
+ * ignoring case and spaces:
+ *
+ * <pre>
+ * fullName, or firstName and lastName     required
+ * indStart, indEnd, groupStart, groupEnd,
+ * checkInStart, checkInEnd                 MM-dd-yyyy, may be empty
+ * walkIns                                  MM-dd-yyyy dates separated by ;
+ * </pre>
+ *
+ * Other columns are ignored, so a CSV written by {@link Exporter} can be
+ * imported back; quoted fields may run over several lines, as exported
+ * notes do. A student may appear on any number of rows; dates on later
+ * rows replace earlier ones, and walk-ins are merged without duplicates.
+ * Empty dates never clear a stored date, and empty walk-ins between
+ * semicolons are skipped.
+ * <p>
+ * Lines are parsed and validated in chunks on several threads while the
+ * calling thread merges the parsed rows in file order and writes them in
+ * batched transactions. Rejected lines are written, with the reason, to a
+ * reject file in the same layout so they can be fixed and imported again.
+ *
+ * @author Andrew Burch
+ */
+public class HistoryImport {
+
+    public static final class Result {
+
+        Result(int rows, Set<String> fullNames, int walkIns,
+                int duplicateWalkIns, int rejected, long nanos) {
+            this.rows = rows;
+            this.fullNames = fullNames;
+            this.walkIns = walkIns;
+            this.duplicateWalkIns = duplicateWalkIns;
+            this.rejected = rejected;
+            this.nanos = nanos;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        /**
+         * Full names of every student the import touched.
+         */
+        public Set<String> getFullNames() {
+            return fullNames;
+        }
+
+        public int getWalkIns() {
+            return walkIns;
+        }
+
+        /**
+         * Walk-ins skipped because the student already had one that day.
+         */
+        public int getDuplicateWalkIns() {
+            return duplicateWalkIns;
+        }
+
+        public int getRejected() {
+            return rejected;
+        }
+
+        public double getRowsPerSecond() {
+            return nanos == 0 ? 0 : rows * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Imported " + (rows - rejected) + " rows for "
+                    + fullNames.size() + " students, " + walkIns
+                    + " walk-ins (" + duplicateWalkIns
+                    + " duplicates skipped), rejected " + rejected + " in "
+                    + nanos / 1000000 + " ms ("
+                    + Math.round(getRowsPerSecond()) + " rows/s)";
+        }
+
+        private final int rows;
+        private final Set<String> fullNames;
+        private final int walkIns;
+        private final int duplicateWalkIns;
+        private final int rejected;
+        private final long nanos;
+    }
+
+    /**
+     * Creates an import writing batchSize students per transaction and
+     * parsing on the given number of threads.
+     */
+    public HistoryImport(StudentStore store, int batchSize, int threads) {
+        this.store = store;
+        this.batchSize = batchSize;
+        this.threads = threads;
+    }
+
+    /**
+     * Imports every row of in. Rejected lines go to rejects, which is
+     * flushed but not closed, or are only counted if it is null.
+     *
+     * @throws IOException if in cannot be read or has no name columns.
+     */
+    public Result run(Reader in, Writer rejects) throws IOException,
+            SQLException {
+        long started = System.nanoTime();
+        BufferedReader reader = in instanceof BufferedReader
+                ? (BufferedReader) in : new BufferedReader(in);
+        String header = reader.readLine();
+        if (header == null) {
+            throw new IOException("History file is empty.");
+        }
+        Layout layout = new Layout(header);
+        if (rejects != null) {
+            rejects.write(header + layout.delimiter + "error\n");
+        }
+        ExecutorService parsers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "history-parser");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Deque<Future<Chunk>> parsing = new ArrayDeque<>();
+        Map<String, Student> batch = new LinkedHashMap<>();
+        Set<String> fullNames = new HashSet<>();
+        int[] counts = new int[5];
+        try {
+            int lineNumber = 1;
+            boolean more = true;
+            while (more || !parsing.isEmpty()) {
+                //Keep every parser busy, but only a few chunks ahead.
+                while (more && parsing.size() < threads * 2) {
+                    List<String> lines = new ArrayList<>(CHUNK_LINES);
+                    int[] lineNumbers = new int[CHUNK_LINES];
+                    String line = null;
+                    while (lines.size() < CHUNK_LINES
+                            && (line = reader.readLine()) != null) {
+                        lineNumbers[lines.size()] = ++lineNumber;
+                        //A quoted field may hold line breaks; read on.
+                        boolean quoted = endsQuoted(line, layout.delimiter,
+                                false);
+                        if (quoted) {
+                            StringBuilder record = new StringBuilder(line);
+                            String next;
+                            while (quoted
+                                    && (next = reader.readLine()) != null) {
+                                record.append('\n').append(next);
+                                lineNumber++;
+                                quoted = endsQuoted(next, layout.delimiter,
+                                        true);
+                            }
+                            line = record.toString();
+                        }
+                        lines.add(line);
+                    }
+                    more = line != null;
+                    if (!lines.isEmpty()) {
+                        Chunk chunk = new Chunk(lineNumbers, lines);
+                        parsing.add(parsers.submit(() -> chunk.parse(layout)));
+                    }
+                }
+                if (parsing.isEmpty()) {
+                    break;
+                }
+                Chunk chunk = parsing.remove().get();
+                merge(chunk, batch, fullNames, counts, rejects,
+                        layout.delimiter);
+                if (batch.size() >= batchSize) {
+                    write(batch, counts);
+                }
+            }
+            write(batch, counts);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("History import interrupted.", ie);
+        } catch (ExecutionException ee) {
+            throw new IOException("Could not parse history: "
+                    + ee.getCause(), ee.getCause());
+        } finally {
+            parsers.shutdownNow();
+        }
+        if (rejects != null) {
+            rejects.flush();
+        }
+        Result result = new Result(counts[ROWS], fullNames, counts[WALK_INS],
+                counts[DUPLICATES], counts[REJECTED], System.nanoTime()
+                - started);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * Returns whether text, read on from a point inside a quoted field if
+     * quoted is set, ends inside a quoted field, by the quoting rules of
+     * {@link RosterReader#split}.
+     */
+    static boolean endsQuoted(String text, char delimiter, boolean quoted) {
+        boolean fieldStart = !quoted;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < text.length()
+                        && text.charAt(i + 1) == '"') {
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                }
+            } else if (c == delimiter) {
+                fieldStart = true;
+            } else if (c == '"' && fieldStart) {
+                quoted = true;
+            } else if (!Character.isWhitespace(c)) {
+                fieldStart = false;
+            }
+        }
+        return quoted;
+    }
+
+    /**
+     * Folds a parsed chunk into batch in file order, counting and writing
+     * out its rejects.
+     */
+    private static void merge(Chunk chunk, Map<String, Student> batch,
+            Set<String> fullNames, int[] counts, Writer rejects,
+            char delimiter) throws IOException {
+        for (int i = 0; i < chunk.lines.size(); i++) {
+            if (chunk.rows[i] == null && chunk.problems[i] == null) {
+                continue;
+            }
+            counts[ROWS]++;
+            if (chunk.problems[i] != null) {
+                counts[REJECTED]++;
+                if (rejects != null) {
+                    rejects.write(chunk.lines.get(i) + delimiter + '"'
+                            + "line " + chunk.lineNumbers[i] + ": "
+                            + chunk.problems[i].replace("\"", "\"\"")
+                            + "\"\n");
+                }
+                continue;
+            }
+            Student row = chunk.rows[i];
+            fullNames.add(row.getFullName());
+            Student merged = batch.get(row.getFullName());
+            if (merged == null) {
+                merged = new Student(row.getFullName());
+                batch.put(row.getFullName(), merged);
+            }
+            copyDates(row, merged);
+            for (int day : row.getWalkIns()) {
+                if (merged.countWalkIns(day, day) == 0) {
+                    merged.addWalkIn(day);
+                    counts[PARSED_WALK_INS]++;
+                } else {
+                    counts[DUPLICATES]++;
+                }
+            }
+        }
+    }
+
+    private static void copyDates(Student from, Student to) {
+        if (from.getStartInd() != Dates.UNSET) {
+            to.setStartInd(from.getStartInd());
+        }
+        if (from.getEndInd() != Dates.UNSET) {
+            to.setEndInd(from.getEndInd());
+        }
+        if (from.getStartGroup() != Dates.UNSET) {
+            to.setStartGroup(from.getStartGroup());
+        }
+        if (from.getEndGroup() != Dates.UNSET) {
+            to.setEndGroup(from.getEndGroup());
+        }
+        if (from.getStartCheckIn() != Dates.UNSET) {
+            to.setStartCheckIn(from.getStartCheckIn());
+        }
+        if (from.getEndCheckIn() != Dates.UNSET) {
+            to.setEndCheckIn(from.getEndCheckIn());
+        }
+    }
+
+    private void write(Map<String, Student> batch, int[] counts)
+            throws SQLException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        int added = store.addHistory(batch.values());
+        //Walk-ins the database already had are duplicates too.
+        counts[DUPLICATES] += counts[PARSED_WALK_INS] - added;
+        counts[WALK_INS] += added;
+        counts[PARSED_WALK_INS] = 0;
+        batch.clear();
+    }
+
+    /**
+     * Where each column is in the file.
+     */
+    private static final class Layout {
+
+        Layout(String header) throws IOException {
+            delimiter = header.indexOf('\t') >= 0 ? '\t' : ',';
+            List<String> fields = new ArrayList<>();
+            RosterReader.split(header, delimiter, fields);
+            for (int i = 0; i < fields.size(); i++) {
+                String name = fields.get(i).replace(" ", "")
+                        .toLowerCase(Locale.ROOT);
+                switch (name) {
+                    case "fullname":
+                        fullName = i;
+                        break;
+                    case "firstname":
+                        firstName = i;
+                        break;
+                    case "lastname":
+                        lastName = i;
+                        break;
+                    case "walkins":
+                        walkIns = i;
+                        break;
+                    default:
+                        for (int d = 0; d < DATE_COLUMNS.length; d++) {
+                            if (DATE_COLUMNS[d].equalsIgnoreCase(name)) {
+                                dates[d] = i;
+                            }
+                        }
+                }
+            }
+            if (fullName < 0 && (firstName < 0 || lastName < 0)) {
+                throw new IOException("History file has no fullName or "
+                        + "firstName and lastName columns.");
+            }
+        }
+
+        private static final String[] DATE_COLUMNS = {"indStart", "indEnd",
+            "groupStart", "groupEnd", "checkInStart", "checkInEnd"};
+
+        private final char delimiter;
+        private int fullName = -1;
+        private int firstName = -1;
+        private int lastName = -1;
+        private int walkIns = -1;
+        private final int[] dates = {-1, -1, -1, -1, -1, -1};
+    }
+
+    /**
+     * A run of records parsed together on one thread, each one line unless
+     * a quoted field runs over several. Each record ends up with either a
+     * row or a problem, or neither if it is blank.
+     */
+    private static final class Chunk {
+
+        Chunk(int[] lineNumbers, List<String> lines) {
+            this.lineNumbers = lineNumbers;
+            this.lines = lines;
+            this.rows = new Student[lines.size()];
+            this.problems = new String[lines.size()];
+        }
+
+        Chunk parse(Layout layout) {
+            List<String> fields = new ArrayList<>();
+            for (int i = 0; i < lines.size(); i++) {
+                String line = lines.get(i);
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                if (endsQuoted(line, layout.delimiter, false)) {
+                    problems[i] = "quoted field is never closed";
+                    continue;
+                }
+                RosterReader.split(line, layout.delimiter, fields);
+                try {
+                    rows[i] = row(layout, fields);
+                } catch (IllegalStateException | DateTimeParseException ex) {
+                    problems[i] = ex.getMessage();
+                }
+            }
+            return this;
+        }
+
+        private static Student row(Layout layout, List<String> fields) {
+            String fullName;
+            if (layout.fullName >= 0 && !field(fields, layout.fullName)
+                    .isEmpty()) {
+                fullName = field(fields, layout.fullName);
+            } else {
+                String first = field(fields, layout.firstName);
+                String last = field(fields, layout.lastName);
+                if (first.isEmpty() || last.isEmpty()) {
+                    throw new IllegalStateException("missing name");
+                }
+                fullName = first + " " + last;
+            }
+            Student row = new Student(fullName);
+            int[] days = new int[layout.dates.length];
+            for (int d = 0; d < days.length; d++) {
+                days[d] = day(field(fields, layout.dates[d]),
+                        Layout.DATE_COLUMNS[d]);
+            }
+            row.setStartInd(days[0]);
+            row.setEndInd(days[1]);
+            row.setStartGroup(days[2]);
+            row.setEndGroup(days[3]);
+            row.setStartCheckIn(days[4]);
+            row.setEndCheckIn(days[5]);
+            String walkIns = field(fields, layout.walkIns);
+            if (!walkIns.isEmpty()) {
+                for (String walkIn : walkIns.split(";")) {
+                    if (!walkIn.trim().isEmpty()) {
+                        row.addWalkIn(day(walkIn.trim(), "walkIns"));
+                    }
+                }
+            }
+            return row;
+        }
+
+        private static int day(String text, String column) {
+            if (text.isEmpty()) {
+                return Dates.UNSET;
+            }
+            try {
+                return Dates.parseEntered(text);
+            } catch (DateTimeParseException dtp) {
+                throw new IllegalStateException(column + " \"" + text
+                        + "\" is not a MM-dd-yyyy date");
+            }
+        }
+
+        private static String field(List<String> fields, int index) {
+            return index < 0 || index >= fields.size() ? ""
+                    : fields.get(index);
+        }
+
+        //File line each record starts on.
+        private final int[] lineNumbers;
+        private final List<String> lines;
+        private final Student[] rows;
+        private final String[] problems;
+    }
+
+    private static final int CHUNK_LINES = 2000;
+    private static final int ROWS = 0;
+    private static final int WALK_INS = 1;
+    private static final int DUPLICATES = 2;
+    private static final int REJECTED = 3;
+    private static final int PARSED_WALK_INS = 4;
+
+    private final StudentStore store;
+    private final int batchSize;
+    private final int threads;
+}
@@ -0,0 +1,528 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Forward-only schema migrations. The schema_version table records every
+ * migration that has been applied; at startup only the missing ones run,
+ * each in its own transaction, so existing data is always kept.
+ *
+ * @author Andrew Burch
+ */
+public final class Migrations {
+
+    interface Migration {
+
+        void apply(Connection conn) throws SQLException;
+    }
+
+    /**
+     * Applies any migrations the database has not seen yet and returns the
+     * resulting schema version.
+     */
+    public static int migrate(Database database) throws SQLException {
+        int version = database.run("read schema version", db -> {
+            try (Statement stat = db.connection().createStatement()) {
+                stat.executeUpdate("create table if not exists schema_version "
+                        + "(version integer primary key, applied text not "
+                        + "null default current_timestamp);");
+                try (ResultSet rs = stat.executeQuery("select "
+                        + "coalesce(max(version), 0) from schema_version;")) {
+                    return rs.next() ? rs.getInt(1) : 0;
+                }
+            }
+        });
+        for (int i = version; i < MIGRATIONS.size(); i++) {
+            final int next = i + 1;
+            database.transaction("migrate to schema " + next, db -> {
+                MIGRATIONS.get(next - 1).apply(db.connection());
+                try (PreparedStatement prep = db.connection().prepareStatement(
+                        "insert into schema_version (version) values (?);")) {
+                    prep.setInt(1, next);
+                    prep.executeUpdate();
+                }
+                return null;
+            });
+            System.out.println("Migrated database to schema version " + next);
+            version = next;
+        }
+        return version;
+    }
+
+    /**
+     * Brings the students of a database kept at legacyPath, where versions
+     * before Resources kept them, over to dbPath for {@link #migrate} to
+     * bring up to date. Those versions also left an empty, unversioned
+     * database at dbPath, which is set aside as dbPath.empty. The legacy
+     * file is renamed to legacyPath.imported afterwards, so this happens
+     * once. Fails, rather than pick one, if both hold students.
+     */
+    public static void importLegacy(Path dbPath, Path legacyPath)
+            throws SQLException, IOException {
+        if (Files.notExists(legacyPath) || !hasStudents(legacyPath)) {
+            return;
+        }
+        if (Files.exists(dbPath)) {
+            if (hasStudents(dbPath)) {
+                throw new IOException("Both " + legacyPath + " and " + dbPath
+                        + " hold students. Move the one not in use out of "
+                        + "the way and start again.");
+            }
+            Files.move(dbPath, dbPath.resolveSibling(dbPath.getFileName()
+                    + ".empty"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.createDirectories(dbPath.toAbsolutePath().getParent());
+        Files.copy(legacyPath, dbPath);
+        Files.move(legacyPath, legacyPath.resolveSibling(
+                legacyPath.getFileName() + ".imported"));
+        System.out.println("Imported students from " + legacyPath);
+    }
+
+    /**
+     * Returns whether the database holds any student, current or archived,
+     * whatever its schema version.
+     */
+    public static boolean hasStudents(Database database) throws SQLException {
+        return database.run("look for students", db -> {
+            Connection conn = db.connection();
+            for (String table : new String[]{"students", "archive"}) {
+                if (!hasTable(conn, table)) {
+                    continue;
+                }
+                try (Statement stat = conn.createStatement();
+                        ResultSet rs = stat.executeQuery("select 1 from "
+                                + table + " limit 1;")) {
+                    if (rs.next()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        });
+    }
+
+    private static boolean hasStudents(Path path) throws SQLException {
+        try (Database database = new Database(path.toString())) {
+            return hasStudents(database);
+        }
+    }
+
+    /**
+     * Creates the keyed students and archive tables. Databases from before
+     * schema versioning keep their rows: an unkeyed students table is copied
+     * into the new one, one row per student, with its "true"/"false" flags
+     * and "null" dates converted and missing flags false. Missing first and
+     * last names are derived from the full name the way {@link Student}
+     * does. Rows dropped as repeats of a later row for the same student are
+     * counted and reported.
+     */
+    private static void createKeyedTables(Connection conn)
+            throws SQLException {
+        try (Statement stat = conn.createStatement()) {
+            boolean legacy = hasTable(conn, "students")
+                    && !hasColumn(conn, "students", "id");
+            if (legacy) {
+                stat.executeUpdate("alter table students rename to "
+                        + "students_legacy;");
+            }
+            stat.executeUpdate("create table if not exists students ("
+                    + V1_COLUMNS + ");");
+            stat.executeUpdate("create unique index if not exists "
+                    + "students_fullName on students (fullName);");
+            if (legacy) {
+                int copied = stat.executeUpdate("insert or ignore into "
+                        + "students (fullName, "
+                        + "firstName, lastName, indStart, indEnd, groupStart, "
+                        + "groupEnd, checkInStart, checkInEnd, walkIns, forms, "
+                        + "notes, hasIEP, has504, hasEval) select fullName, "
+                        + "coalesce(firstName, " + FIRST_NAME + "), "
+                        + "coalesce(lastName, " + LAST_NAME + "), "
+                        + legacyDate("indStart")
+                        + ", " + legacyDate("indEnd") + ", "
+                        + legacyDate("groupStart") + ", "
+                        + legacyDate("groupEnd") + ", "
+                        + legacyDate("checkInStart") + ", "
+                        + legacyDate("checkInEnd") + ", "
+                        + "coalesce(walkIns, ''), coalesce(forms, ''), "
+                        + "coalesce(notes, ''), "
+                        + "coalesce(hasIEP = 'true', 0), "
+                        + "coalesce(has504 = 'true', 0), "
+                        + "coalesce(hasEval = 'true', 0) "
+                        + "from students_legacy where fullName is not null "
+                        + "order by rowid desc;");
+                try (ResultSet rs = stat.executeQuery("select count(*) from "
+                        + "students_legacy;")) {
+                    int skipped = rs.next() ? rs.getInt(1) - copied : 0;
+                    if (skipped > 0) {
+                        System.err.println("Skipped " + skipped + " legacy "
+                                + "student rows without a full name or "
+                                + "repeating a later row");
+                    }
+                }
+                stat.executeUpdate("drop table students_legacy;");
+            }
+            if (hasTable(conn, "archive") && !hasColumn(conn, "archive", "id")) {
+                //The legacy archive table was never written to.
+                stat.executeUpdate("drop table archive;");
+            }
+            stat.executeUpdate("create table if not exists archive ("
+                    + V1_COLUMNS + ");");
+        }
+    }
+
+    /**
+     * Stores the six service dates as integer epoch days instead of
+     * "MM-dd-yyyy" text. SQLite cannot change a column's type in place, so
+     * both tables are rebuilt.
+     */
+    private static void storeDatesAsEpochDays(Connection conn)
+            throws SQLException {
+        String columns = "id, fullName, firstName, lastName, indStart, "
+                + "indEnd, groupStart, groupEnd, checkInStart, checkInEnd, "
+                + "walkIns, forms, notes, hasIEP, has504, hasEval";
+        String converted = "id, fullName, firstName, lastName, "
+                + epochDay("indStart") + ", " + epochDay("indEnd") + ", "
+                + epochDay("groupStart") + ", " + epochDay("groupEnd") + ", "
+                + epochDay("checkInStart") + ", " + epochDay("checkInEnd")
+                + ", walkIns, forms, notes, hasIEP, has504, hasEval";
+        rebuild(conn, V2_COLUMNS, columns, converted);
+    }
+
+    /**
+     * Moves walk-ins out of the semicolon-joined walkIns column into the
+     * walk_ins table, one row per walk-in, indexed by student and date.
+     */
+    private static void moveWalkInsToTable(Connection conn)
+            throws SQLException {
+        try (Statement stat = conn.createStatement()) {
+            stat.executeUpdate("create table walk_ins (student_id integer not "
+                    + "null, day integer not null);");
+            stat.executeUpdate("create index walk_ins_student_day on walk_ins "
+                    + "(student_id, day);");
+        }
+        try (Statement stat = conn.createStatement();
+                PreparedStatement insert = conn.prepareStatement("insert into "
+                        + "walk_ins (student_id, day) values (?, ?);")) {
+            for (String table : new String[]{"students", "archive"}) {
+                try (ResultSet rs = stat.executeQuery("select id, walkIns from "
+                        + table + " where walkIns != '';")) {
+                    while (rs.next()) {
+                        for (String date : rs.getString(2).split(";")) {
+                            try {
+                                insert.setInt(1, rs.getInt(1));
+                                insert.setInt(2, Dates.parse(date.trim()));
+                                insert.addBatch();
+                            } catch (DateTimeParseException dtp) {
+                                System.err.println("Dropping walk-in '" + date
+                                        + "' for student " + rs.getInt(1));
+                            }
+                        }
+                    }
+                }
+            }
+            insert.executeBatch();
+        }
+        String columns = "id, fullName, firstName, lastName, indStart, "
+                + "indEnd, groupStart, groupEnd, checkInStart, checkInEnd, "
+                + "forms, notes, hasIEP, has504, hasEval";
+        rebuild(conn, V3_COLUMNS, columns, columns);
+    }
+
+    /**
+     * Moves form names out of the semicolon-joined forms column into the
+     * forms table, one row per attached file, keyed by student and file
+     * name. Size, modification time and hash are left unknown.
+     */
+    private static void moveFormsToTable(Connection conn)
+            throws SQLException {
+        try (Statement stat = conn.createStatement()) {
+            stat.executeUpdate("create table forms (student_id integer not "
+                    + "null, fileName text not null, size integer not null "
+                    + "default -1, modified integer not null default -1, "
+                    + "hash text, primary key (student_id, fileName));");
+        }
+        try (Statement stat = conn.createStatement();
+                PreparedStatement insert = conn.prepareStatement("insert or "
+                        + "ignore into forms (student_id, fileName) values "
+                        + "(?, ?);")) {
+            for (String table : new String[]{"students", "archive"}) {
+                try (ResultSet rs = stat.executeQuery("select id, forms from "
+                        + table + " where forms != '';")) {
+                    while (rs.next()) {
+                        for (String form : rs.getString(2).split(";")) {
+                            if (!form.trim().isEmpty()) {
+                                insert.setInt(1, rs.getInt(1));
+                                insert.setString(2, form.trim());
+                                insert.addBatch();
+                            }
+                        }
+                    }
+                }
+            }
+            insert.executeBatch();
+        }
+        String columns = "id, fullName, firstName, lastName, indStart, "
+                + "indEnd, groupStart, groupEnd, checkInStart, checkInEnd, "
+                + "notes, hasIEP, has504, hasEval";
+        rebuild(conn, V4_COLUMNS, columns, columns);
+    }
+
+    /**
+     * Creates the student_search full-text table over notes and form names,
+     * keyed by student id, and indexes every current student.
+     */
+    private static void createSearchIndex(Connection conn)
+            throws SQLException {
+        try (Statement stat = conn.createStatement()) {
+            stat.executeUpdate("create virtual table student_search using "
+                    + "fts5(notes, forms, tokenize = 'unicode61 "
+                    + "remove_diacritics 2');");
+            //Frozen copy of the indexing query as of this schema version.
+            stat.executeUpdate("insert into student_search (rowid, notes, "
+                    + "forms) select s.id, s.notes, coalesce((select "
+                    + "group_concat(fileName, ' ') from forms where "
+                    + "student_id = s.id), '') from students s;");
+        }
+    }
+
+    /**
+     * Prepares the archive for school-year rollovers. Archived rows record
+     * the school year they were archived in, which is indexed. Student ids
+     * become autoincrement, starting past every id in either table, so an
+     * archived student's id is never reused and their walk-ins and forms
+     * cannot be picked up by a new student.
+     */
+    private static void partitionArchiveByYear(Connection conn)
+            throws SQLException {
+        String columns = "id, fullName, firstName, lastName, indStart, "
+                + "indEnd, groupStart, groupEnd, checkInStart, checkInEnd, "
+                + "notes, hasIEP, has504, hasEval";
+        try (Statement stat = conn.createStatement()) {
+            stat.executeUpdate("create table students_new (" + V6_COLUMNS
+                    + ");");
+            stat.executeUpdate("insert into students_new (" + columns
+                    + ") select " + columns + " from students;");
+            stat.executeUpdate("drop table students;");
+            stat.executeUpdate("alter table students_new rename to students;");
+            stat.executeUpdate("create unique index students_fullName on "
+                    + "students (fullName);");
+            stat.executeUpdate("delete from sqlite_sequence where name = "
+                    + "'students';");
+            stat.executeUpdate("insert into sqlite_sequence (name, seq) "
+                    + "select 'students', coalesce(max(id), 0) from (select id "
+                    + "from students union all select id from archive);");
+            stat.executeUpdate("alter table archive add column school_year "
+                    + "integer;");
+            stat.executeUpdate("create index archive_school_year on archive "
+                    + "(school_year);");
+        }
+    }
+
+    /**
+     * Creates the attachments table listing every file in the content
+     * addressed {@link AttachmentStore}, keyed by hash. Triggers on forms
+     * keep each attachment's reference count in step with the forms rows
+     * naming its hash, in the same transaction, for students and archive
+     * alike. Forms stored before this keep their files in the student's
+     * folder and are not counted.
+     */
+    private static void createAttachmentStore(Connection conn)
+            throws SQLException {
+        try (Statement stat = conn.createStatement()) {
+            stat.executeUpdate("create table attachments (hash text primary "
+                    + "key, size integer not null, refs integer not null "
+                    + "default 0, stored integer not null);");
+            stat.executeUpdate("create index attachments_unreferenced on "
+                    + "attachments (stored) where refs <= 0;");
+            stat.executeUpdate("create index forms_hash on forms (hash);");
+            stat.executeUpdate("create trigger forms_reference after insert "
+                    + "on forms when new.hash is not null begin update "
+                    + "attachments set refs = refs + 1 where hash = new.hash; "
+                    + "end;");
+            stat.executeUpdate("create trigger forms_release after delete on "
+                    + "forms when old.hash is not null begin update "
+                    + "attachments set refs = refs - 1 where hash = old.hash; "
+                    + "end;");
+            stat.executeUpdate("create trigger forms_rehash after update of "
+                    + "hash on forms begin update attachments set refs = "
+                    + "refs - 1 where hash = old.hash; update attachments set "
+                    + "refs = refs + 1 where hash = new.hash; end;");
+        }
+    }
+
+    /**
+     * Creates the student_files table, the persisted index of the files in
+     * each folder under Student Files, keyed by folder and file name. It is
+     * filled by {@link StudentFiles} on its first walk.
+     */
+    private static void createStudentFilesIndex(Connection conn)
+            throws SQLException {
+        try (Statement stat = conn.createStatement()) {
+            stat.executeUpdate("create table student_files (folder text not "
+                    + "null, fileName text not null, size integer not null, "
+                    + "modified integer not null, hash text, primary key "
+                    + "(folder, fileName));");
+        }
+    }
+
+    /**
+     * Creates the one-row journal_checkpoint table, holding the sequence
+     * number of the last {@link ChangeJournal} entry whose change has been
+     * written to the database. Entries after it are replayed at startup.
+     */
+    private static void createJournalCheckpoint(Connection conn)
+            throws SQLException {
+        try (Statement stat = conn.createStatement()) {
+            stat.executeUpdate("create table journal_checkpoint (seq integer "
+                    + "not null);");
+            stat.executeUpdate("insert into journal_checkpoint (seq) values "
+                    + "(0);");
+        }
+    }
+
+    /**
+     * Recreates the students and archive tables with newColumns, copying
+     * select into columns for every row, since SQLite cannot change or drop
+     * columns in place.
+     */
+    private static void rebuild(Connection conn, String newColumns,
+            String columns, String select) throws SQLException {
+        try (Statement stat = conn.createStatement()) {
+            for (String table : new String[]{"students", "archive"}) {
+                stat.executeUpdate("create table " + table + "_new ("
+                        + newColumns + ");");
+                stat.executeUpdate("insert into " + table + "_new (" + columns
+                        + ") select " + select + " from " + table + ";");
+                stat.executeUpdate("drop table " + table + ";");
+                stat.executeUpdate("alter table " + table + "_new rename to "
+                        + table + ";");
+            }
+            stat.executeUpdate("create unique index students_fullName on "
+                    + "students (fullName);");
+        }
+    }
+
+    private static String epochDay(String column) {
+        return "cast(julianday(substr(" + column + ", 7, 4) || '-' || substr("
+                + column + ", 1, 2) || '-' || substr(" + column + ", 4, 2)) "
+                + "- 2440587.5 as integer)";
+    }
+
+    private static String legacyDate(String column) {
+        return "nullif(nullif(" + column + ", 'null'), '')";
+    }
+
+    static boolean hasTable(Connection conn, String table)
+            throws SQLException {
+        try (PreparedStatement prep = conn.prepareStatement("select 1 from "
+                + "sqlite_master where type = 'table' and name = ?;")) {
+            prep.setString(1, table);
+            try (ResultSet rs = prep.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    static boolean hasColumn(Connection conn, String table, String column)
+            throws SQLException {
+        try (Statement stat = conn.createStatement();
+                ResultSet rs = stat.executeQuery("pragma table_info(" + table
+                        + ");")) {
+            while (rs.next()) {
+                if (rs.getString("name").equals(column)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    //First and last name of a legacy row, as Student derives them.
+    private static final String FIRST_NAME = "case instr(fullName, ' ') "
+            + "when 0 then fullName else substr(fullName, 1, "
+            + "instr(fullName, ' ') - 1) end";
+
+    private static final String LAST_NAME = "case when instr(fullName, ' ') "
+            + "= 0 then '' else substr(substr(fullName, instr(fullName, ' ') "
+            + "+ 1), 1, instr(substr(fullName, instr(fullName, ' ') + 1) "
+            + "|| ' ', ' ') - 1) end";
+
+    private static final String V1_COLUMNS = "id integer primary key, "
+            + "fullName text not null, firstName text not null, "
+            + "lastName text not null, indStart text, indEnd text, "
+            + "groupStart text, groupEnd text, checkInStart text, "
+            + "checkInEnd text, walkIns text not null default '', "
+            + "forms text not null default '', notes text not null default '', "
+            + "hasIEP integer not null default 0, "
+            + "has504 integer not null default 0, "
+            + "hasEval integer not null default 0";
+
+    private static final String V2_COLUMNS = "id integer primary key, "
+            + "fullName text not null, firstName text not null, "
+            + "lastName text not null, indStart integer, indEnd integer, "
+            + "groupStart integer, groupEnd integer, checkInStart integer, "
+            + "checkInEnd integer, walkIns text not null default '', "
+            + "forms text not null default '', notes text not null default '', "
+            + "hasIEP integer not null default 0, "
+            + "has504 integer not null default 0, "
+            + "hasEval integer not null default 0";
+
+    private static final String V3_COLUMNS = "id integer primary key, "
+            + "fullName text not null, firstName text not null, "
+            + "lastName text not null, indStart integer, indEnd integer, "
+            + "groupStart integer, groupEnd integer, checkInStart integer, "
+            + "checkInEnd integer, forms text not null default '', "
+            + "notes text not null default '', "
+            + "hasIEP integer not null default 0, "
+            + "has504 integer not null default 0, "
+            + "hasEval integer not null default 0";
+
+    private static final String V4_COLUMNS = "id integer primary key, "
+            + "fullName text not null, firstName text not null, "
+            + "lastName text not null, indStart integer, indEnd integer, "
+            + "groupStart integer, groupEnd integer, checkInStart integer, "
+            + "checkInEnd integer, notes text not null default '', "
+            + "hasIEP integer not null default 0, "
+            + "has504 integer not null default 0, "
+            + "hasEval integer not null default 0";
+
+    private static final String V6_COLUMNS = "id integer primary key "
+            + "autoincrement, fullName text not null, "
+            + "firstName text not null, lastName text not null, "
+            + "indStart integer, indEnd integer, groupStart integer, "
+            + "groupEnd integer, checkInStart integer, checkInEnd integer, "
+            + "notes text not null default '', "
+            + "hasIEP integer not null default 0, "
+            + "has504 integer not null default 0, "
+            + "hasEval integer not null default 0";
+
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+            Migrations::createKeyedTables,
+            Migrations::storeDatesAsEpochDays,
+            Migrations::moveWalkInsToTable,
+            Migrations::moveFormsToTable,
+            Migrations::createSearchIndex,
+            Migrations::partitionArchiveByYear,
+            Migrations::createAttachmentStore,
+            Migrations::createStudentFilesIndex,
+            Migrations::createJournalCheckpoint);
+
+    private Migrations() {
+    }
+}
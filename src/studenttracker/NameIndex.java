@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Prefix index over student names for the search box. Every name is keyed by
+ * its full name and by each name that follows a space in it, so "ann" finds
+ * "Mary Ann Smith" as well as "Anna Jones". Keys are lower case with accents
+ * removed and kept in one sorted array, so a search is a binary search for
+ * the first matching key followed by a scan of the keys that match.
+ *
+ * @author Andrew Burch
+ */
+public final class NameIndex {
+
+    /**
+     * Indexes names, which is not copied and must not change while the
+     * index is in use.
+     */
+    public NameIndex(List<String> names) {
+        this.names = names;
+        List<Entry> entries = new ArrayList<>(names.size() * 2);
+        for (int id = 0; id < names.size(); id++) {
+            String name = normalize(names.get(id));
+            int start = 0;
+            while (start < name.length()) {
+                entries.add(new Entry(name.substring(start), id));
+                int space = name.indexOf(' ', start);
+                if (space < 0) {
+                    break;
+                }
+                start = space + 1;
+            }
+        }
+        Entry[] sorted = entries.toArray(new Entry[entries.size()]);
+        Arrays.sort(sorted);
+        keys = new String[sorted.length];
+        ids = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            keys[i] = sorted[i].key;
+            ids[i] = sorted[i].id;
+        }
+    }
+
+    /**
+     * Returns the positions in the indexed list of every name with a word
+     * starting with prefix.
+     */
+    public BitSet find(String prefix) {
+        String key = normalize(prefix);
+        BitSet found = new BitSet(names.size());
+        for (int i = firstKeyFrom(key); i < keys.length
+                && keys[i].startsWith(key); i++) {
+            found.set(ids[i]);
+        }
+        return found;
+    }
+
+    /**
+     * Returns the names with a word starting with prefix, in list order.
+     */
+    public List<String> matches(String prefix) {
+        BitSet found = find(prefix);
+        List<String> matches = new ArrayList<>(found.cardinality());
+        for (int id = found.nextSetBit(0); id >= 0;
+                id = found.nextSetBit(id + 1)) {
+            matches.add(names.get(id));
+        }
+        return matches;
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Lower cases s, drops accents and collapses runs of spaces.
+     */
+    static String normalize(String s) {
+        String decomposed = s.trim();
+        for (int i = 0; i < decomposed.length(); i++) {
+            if (decomposed.charAt(i) > 127) {
+                //Only decompose names that may have accents.
+                decomposed = Normalizer.normalize(decomposed,
+                        Normalizer.Form.NFD);
+                break;
+            }
+        }
+        StringBuilder normal = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                if (normal.length() > 0
+                        && normal.charAt(normal.length() - 1) != ' ') {
+                    normal.append(' ');
+                }
+            } else {
+                normal.append(Character.toLowerCase(c));
+            }
+        }
+        return normal.toString();
+    }
+
+    private int firstKeyFrom(String key) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+
+        Entry(String key, int id) {
+            this.key = key;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return key.compareTo(other.key);
+        }
+
+        private final String key;
+        private final int id;
+    }
+
+    private final List<String> names;
+    private final String[] keys;
+    private final int[] ids;
+}
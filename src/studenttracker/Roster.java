@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The student list kept sorted by last then first name, as it is written to
+ * the list file. Adding or removing a student is O(log n) in memory and
+ * appends one line to a journal next to the list file rather than rewriting
+ * it; {@link #compact} folds the journal back into the list file, replacing
+ * it atomically.
+ *
+ * @author Andrew Burch
+ */
+public class Roster {
+
+    public Roster(Path path) {
+        this.path = path;
+    }
+
+    public synchronized Path getPath() {
+        return path;
+    }
+
+    /**
+     * Adds a student read from the list file itself, without journaling.
+     */
+    public synchronized void load(String firstName, String lastName) {
+        names.add(key(lastName, firstName));
+    }
+
+    /**
+     * Applies changes journaled since the list file was last written.
+     * Returns the number of journal entries applied.
+     */
+    public synchronized int replayJournal() throws IOException {
+        Path journal = journalPath();
+        if (Files.notExists(journal)) {
+            return 0;
+        }
+        int entries = 0;
+        try (BufferedReader reader = Files.newBufferedReader(journal,
+                Charset.defaultCharset())) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] entry = line.split("\t", 3);
+                if (entry.length != 3) {
+                    System.err.println("Ignoring journal entry '" + line + "'");
+                    continue;
+                }
+                if (entry[0].equals("+")) {
+                    names.add(key(entry[1], entry[2]));
+                } else {
+                    names.remove(key(entry[1], entry[2]));
+                }
+                entries++;
+            }
+        }
+        journalSize = entries;
+        return entries;
+    }
+
+    public synchronized boolean add(String lastName, String firstName)
+            throws IOException {
+        if (!names.add(key(lastName, firstName))) {
+            return false;
+        }
+        journal("+", lastName, firstName);
+        return true;
+    }
+
+    public synchronized boolean remove(String lastName, String firstName)
+            throws IOException {
+        if (!names.remove(key(lastName, firstName))) {
+            return false;
+        }
+        journal("-", lastName, firstName);
+        return true;
+    }
+
+    /**
+     * Writes the whole list to target and makes it this roster's file. Used
+     * the first time an unmodified list is changed.
+     */
+    public synchronized void saveAs(Path target) throws IOException {
+        path = target;
+        compact();
+    }
+
+    /**
+     * Rewrites the list file from memory through a temporary file that is
+     * then renamed over it, and discards the journal.
+     */
+    public synchronized void compact() throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp,
+                Charset.defaultCharset())) {
+            writer.write("Last Name \tFirst Name");
+            for (String name : names) {
+                writer.newLine();
+                writer.write(name);
+            }
+        }
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException amns) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.deleteIfExists(journalPath());
+        journalSize = 0;
+    }
+
+    /**
+     * Number of changes journaled since the list file was last written.
+     */
+    public synchronized int getJournalSize() {
+        return journalSize;
+    }
+
+    /**
+     * Returns every student as "First Last", in list order.
+     */
+    public synchronized List<String> fullNames() {
+        List<String> fullNames = new ArrayList<>(names.size());
+        for (String name : names) {
+            int tab = name.indexOf(" \t");
+            fullNames.add(name.substring(tab + 2) + " "
+                    + name.substring(0, tab));
+        }
+        return fullNames;
+    }
+
+    public synchronized int size() {
+        return names.size();
+    }
+
+    private void journal(String op, String lastName, String firstName)
+            throws IOException {
+        try (Writer writer = Files.newBufferedWriter(journalPath(),
+                Charset.defaultCharset(), StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND)) {
+            writer.write(op + "\t" + lastName.trim() + "\t" + firstName.trim()
+                    + System.lineSeparator());
+        }
+        journalSize++;
+    }
+
+    private Path journalPath() {
+        return Paths.get(path + ".journal");
+    }
+
+    private static String key(String lastName, String firstName) {
+        return lastName.trim() + " \t" + firstName.trim();
+    }
+
+    private Path path;
+    private final TreeSet<String> names = new TreeSet<>();
+    private int journalSize = 0;
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Feeds the rows of a {@link RosterReader} into the students table in
+ * batched transactions as they are read, optionally passing each row on to
+ * another handler as well.
+ *
+ * @author Andrew Burch
+ */
+public class RosterImport implements RosterReader.RowHandler {
+
+    public RosterImport(StudentStore store, int batchSize,
+            RosterReader.RowHandler next) {
+        this.store = store;
+        this.batchSize = batchSize;
+        this.next = next;
+        this.batch = new ArrayList<>(batchSize);
+    }
+
+    @Override
+    public void row(String firstName, String lastName) throws IOException {
+        batch.add(new String[]{firstName, lastName});
+        rows++;
+        if (batch.size() >= batchSize) {
+            finish();
+        }
+        if (next != null) {
+            next.row(firstName, lastName);
+        }
+    }
+
+    /**
+     * Writes any rows still buffered.
+     */
+    public void finish() throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            added += store.addAll(batch);
+        } catch (SQLException sql) {
+            throw new IOException("Could not add students: " + sql, sql);
+        }
+        batch.clear();
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getAdded() {
+        return added;
+    }
+
+    private final StudentStore store;
+    private final int batchSize;
+    private final RosterReader.RowHandler next;
+    private final List<String[]> batch;
+    private int rows = 0;
+    private int added = 0;
+}
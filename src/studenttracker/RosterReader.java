@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams a tab- or comma-separated roster one line at a time. The header is
+ * read once to find the "First Name" and "Last Name" columns; after that each
+ * line is scanned once for its fields without regular expressions. Rows that
+ * cannot be read are reported with their line numbers and skipped instead of
+ * stopping the import.
+ *
+ * @author Andrew Burch
+ */
+public class RosterReader {
+
+    public interface RowHandler {
+
+        void row(String firstName, String lastName) throws IOException;
+    }
+
+    public static final class Problem {
+
+        Problem(int line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return "line " + line + ": " + message;
+        }
+
+        private final int line;
+        private final String message;
+    }
+
+    /**
+     * Reads every row of in, passing each student's names to handler.
+     * Returns the rows that were skipped.
+     *
+     * @throws IOException if in cannot be read or has no name columns.
+     */
+    public List<Problem> read(Reader in, RowHandler handler)
+            throws IOException {
+        BufferedReader reader = in instanceof BufferedReader
+                ? (BufferedReader) in : new BufferedReader(in);
+        String header = reader.readLine();
+        if (header == null) {
+            throw new IOException("Student list is empty.");
+        }
+        char delimiter = header.indexOf('\t') >= 0 ? '\t' : ',';
+        List<String> fields = new ArrayList<>();
+        split(header, delimiter, fields);
+        int firstNameInd = -1;
+        int lastNameInd = -1;
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.get(i).equalsIgnoreCase("First Name")) {
+                firstNameInd = i;
+            } else if (fields.get(i).equalsIgnoreCase("Last Name")) {
+                lastNameInd = i;
+            }
+        }
+        if (firstNameInd < 0 || lastNameInd < 0) {
+            throw new IOException("Student list has no \"First Name\" and "
+                    + "\"Last Name\" columns.");
+        }
+        List<Problem> problems = new ArrayList<>();
+        String line;
+        int lineNumber = 1;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            split(line, delimiter, fields);
+            if (fields.size() <= Math.max(firstNameInd, lastNameInd)) {
+                problems.add(new Problem(lineNumber, "expected "
+                        + (Math.max(firstNameInd, lastNameInd) + 1)
+                        + " columns but found " + fields.size()));
+                continue;
+            }
+            String firstName = fields.get(firstNameInd);
+            String lastName = fields.get(lastNameInd);
+            if (firstName.isEmpty() || lastName.isEmpty()) {
+                problems.add(new Problem(lineNumber, "missing first or last "
+                        + "name"));
+                continue;
+            }
+            handler.row(firstName, lastName);
+        }
+        return problems;
+    }
+
+    /**
+     * Splits line on delimiter into trimmed fields. Fields may be wrapped in
+     * double quotes, with "" standing for a quote inside them.
+     */
+    static void split(String line, char delimiter, List<String> fields) {
+        fields.clear();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length()
+                        && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == delimiter) {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else if (c == '"' && field.toString().trim().isEmpty()) {
+                field.setLength(0);
+                quoted = true;
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+    }
+}
@@ -1,17 +1,22 @@
-/* 
+/*
  * Copyright 2016 Andrew Burch.
  *
  * This software is not available for distribution under any license.
  */
 package studenttracker;
 
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 /**
+ * A student's counseling record. Dates are held as epoch days, with
+ * {@link Dates#UNSET} for dates that have not been set, and are only turned
+ * into text by {@link Dates#format} where they are shown or exported.
  *
  * @author Andrew Burch
  */
@@ -19,148 +24,156 @@ public class Student {
 
     public Student(String name) {
         this.fullName = name;
-        this.firstName = fullName.split(" ")[0];
-        this.lastName = fullName.split(" ")[1];
-        this.walkInDates = new StringBuilder("");
     }
 
     public void setStartInd() {
-        System.out.println("indStart is being modified!");
-        this.indStartDate = LocalDateTime.now().format(
-                DateTimeFormatter.ofPattern("MM-dd-yyyy"));
+        this.indStartDate = Dates.today();
     }
 
-    public void setStartInd(String date) {
-        System.out.println("indStart is being modified!");
+    public void setStartInd(int date) {
         this.indStartDate = date;
     }
 
     public void setEndInd() {
-        System.out.println("indEnd is being modified!");
-        this.indEndDate = LocalDateTime.now().format(
-                DateTimeFormatter.ofPattern("MM-dd-yyyy"));
+        this.indEndDate = Dates.today();
     }
 
-    public void setEndInd(String date) {
-        System.out.println("indEnd is being modified!");
+    public void setEndInd(int date) {
         this.indEndDate = date;
     }
 
     public void setStartGroup() {
-        this.groupStartDate = LocalDateTime.now().format(
-                DateTimeFormatter.ofPattern("MM-dd-yyyy"));
+        this.groupStartDate = Dates.today();
     }
 
-    public void setStartGroup(String date) {
+    public void setStartGroup(int date) {
         this.groupStartDate = date;
     }
 
     public void setEndGroup() {
-        this.groupEndDate = LocalDateTime.now().format(
-                DateTimeFormatter.ofPattern("MM-dd-yyyy"));
+        this.groupEndDate = Dates.today();
     }
 
-    public void setEndGroup(String date) {
+    public void setEndGroup(int date) {
         this.groupEndDate = date;
     }
 
     public void setStartCheckIn() {
-        this.checkInStartDate = LocalDateTime.now().format(
-                DateTimeFormatter.ofPattern("MM-dd-yyyy"));
+        this.checkInStartDate = Dates.today();
     }
 
-    public void setStartCheckIn(String date) {
+    public void setStartCheckIn(int date) {
         this.checkInStartDate = date;
     }
 
     public void setEndCheckIn() {
-        this.checkInEndDate = LocalDateTime.now().format(
-                DateTimeFormatter.ofPattern("MM-dd-yyyy"));
+        this.checkInEndDate = Dates.today();
     }
 
-    public void setEndCheckIn(String date) {
+    public void setEndCheckIn(int date) {
         this.checkInEndDate = date;
     }
 
     public void addWalkIn() {
-        if (!this.walkInDates.toString().equals("")) {
-            this.walkInDates.append(";");
+        addWalkIn(Dates.today());
+    }
+
+    /**
+     * Records a walk-in on date, keeping walk-ins in date order. Dates are
+     * usually added in order, so this is normally an append.
+     */
+    public void addWalkIn(int date) {
+        int index = firstWalkInAfter(date);
+        if (walkInCount == walkIns.length) {
+            walkIns = Arrays.copyOf(walkIns, Math.max(4, walkInCount * 2));
         }
-        this.walkInDates.append(LocalDateTime.now().format(
-                DateTimeFormatter.ofPattern("MM-dd-yyyy")));
+        System.arraycopy(walkIns, index, walkIns, index + 1,
+                walkInCount - index);
+        walkIns[index] = date;
+        walkInCount++;
     }
 
-    public void addWalkIn(String date) {
-        if (!this.walkInDates.toString().equals("")) {
-            this.walkInDates.append(";");
+    public void setWalkIns(int[] dates) {
+        this.walkIns = Arrays.copyOf(dates, dates.length);
+        Arrays.sort(this.walkIns);
+        this.walkInCount = dates.length;
+    }
+
+    /**
+     * Counts walk-ins from one date to another, inclusive.
+     */
+    public int countWalkIns(int from, int to) {
+        if (to < from) {
+            return 0;
         }
-        this.walkInDates.append(date);
+        return firstWalkInAfter(to) - firstWalkInAfter(from - 1);
     }
 
-    public void setWalkIns(String dates) {
-        this.walkInDates = new StringBuilder(dates);
+    public int countWalkInsThisMonth() {
+        LocalDate today = LocalDate.now();
+        return countWalkIns((int) today.withDayOfMonth(1).toEpochDay(),
+                (int) today.withDayOfMonth(today.lengthOfMonth())
+                .toEpochDay());
     }
 
-    public void addForms(String form) {
-        if (!this.forms.toString().equals("")) {
-            this.forms.append(";");
+    /**
+     * Attaches form, replacing any form with the same file name but keeping
+     * its place in the list.
+     */
+    public void addForm(Form form) {
+        if (this.forms == null) {
+            this.forms = new LinkedHashMap<>();
         }
-        this.forms.append(form);
-    }
-
-    public void removeForm(String form) {
-        System.out.println("Form to remove: '" + form + "'");
-        List<String> formsList = Arrays.asList(this.forms.toString().split(";"));
-        List<String> formsArray = new ArrayList<>();
-        formsArray.addAll(formsList);
-        formsArray.remove(form);
-        if (formsArray.isEmpty()) {
-            this.forms = new StringBuilder("");
-        }else {
-            this.forms = new StringBuilder(formsArray.get(0));
-            for (int i = 1; i < formsArray.size(); i++) {
-                this.forms.append(";");
-                this.forms.append(formsArray.get(i));
-            }
+        this.forms.put(form.getFileName(), form);
+    }
+
+    public void removeForm(String fileName) {
+        if (this.forms != null) {
+            this.forms.remove(fileName);
         }
     }
 
-    public void setForms(String forms) {
-        this.forms = new StringBuilder(forms);
+    public void setForms(Collection<Form> forms) {
+        this.forms = null;
+        for (Form form : forms) {
+            addForm(form);
+        }
     }
 
     public void setNotes(String notes) {
-        this.notes = new StringBuilder(notes);
+        this.notes = notes;
     }
 
     public void toggleIEP() {
-        this.hasIEP ^= true;
-        System.out.println("Toggled IEP!");
+        this.flags ^= IEP;
     }
 
-    public void setIEP(Boolean has) {
-        this.hasIEP = has;
-        System.out.println("Set IEP!");
+    public void setIEP(boolean has) {
+        setFlag(IEP, has);
     }
 
     public void toggle504() {
-        this.has504 ^= true;
-        System.out.println("Toggled 504!");
+        this.flags ^= PLAN_504;
     }
 
-    public void set504(Boolean has) {
-        this.has504 = has;
-        System.out.println("Set 504!");
+    public void set504(boolean has) {
+        setFlag(PLAN_504, has);
     }
 
     public void toggleEval() {
-        this.hasEval ^= true;
-        System.out.println("Toggled eval!!");
+        this.flags ^= EVAL;
     }
 
-    public void setEval(Boolean has) {
-        this.hasEval = has;
-        System.out.println("Set eval!");
+    public void setEval(boolean has) {
+        setFlag(EVAL, has);
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return this.id;
     }
 
     public String getFullName() {
@@ -168,75 +181,173 @@ public class Student {
     }
 
     public String getFirstName() {
-        return this.firstName;
+        int space = fullName.indexOf(' ');
+        return space < 0 ? fullName : fullName.substring(0, space);
     }
 
     public String getLastName() {
-        return this.lastName;
+        String[] names = fullName.split(" ");
+        return names.length > 1 ? names[1] : "";
     }
 
-    public String getStartInd() {
+    public int getStartInd() {
         return this.indStartDate;
     }
 
-    public String getEndInd() {
+    public int getEndInd() {
         return this.indEndDate;
     }
 
-    public String getStartGroup() {
+    public int getStartGroup() {
         return this.groupStartDate;
     }
 
-    public String getEndGroup() {
+    public int getEndGroup() {
         return this.groupEndDate;
     }
 
-    public String getStartCheckIn() {
+    public int getStartCheckIn() {
         return this.checkInStartDate;
     }
 
-    public String getEndCheckIn() {
+    public int getEndCheckIn() {
         return this.checkInEndDate;
     }
 
-    public String getWalkIns() {
-        return this.walkInDates.toString();
+    public int[] getWalkIns() {
+        return Arrays.copyOf(this.walkIns, this.walkInCount);
+    }
+
+    public int getWalkInCount() {
+        return this.walkInCount;
+    }
+
+    /**
+     * Returns the attached forms in the order they were added.
+     */
+    public Collection<Form> getForms() {
+        if (this.forms == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableCollection(this.forms.values());
+    }
+
+    public List<String> getFormNames() {
+        if (this.forms == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(this.forms.keySet());
+    }
 
+    /**
+     * Returns the attached form with the given file name, or null.
+     */
+    public Form getForm(String fileName) {
+        return this.forms == null ? null : this.forms.get(fileName);
     }
 
-    public String getForms() {
-        return this.forms.toString();
+    public int getFormCount() {
+        return this.forms == null ? 0 : this.forms.size();
+    }
+
+    public boolean hasForm(String fileName) {
+        return this.forms != null && this.forms.containsKey(fileName);
     }
 
     public String getNotes() {
-        return this.notes.toString();
+        return this.notes;
     }
 
     public boolean getIEP() {
-        return this.hasIEP;
+        return (this.flags & IEP) != 0;
     }
 
     public boolean get504() {
-        return this.has504;
+        return (this.flags & PLAN_504) != 0;
     }
 
     public boolean getEval() {
-        return this.hasEval;
+        return (this.flags & EVAL) != 0;
+    }
+
+    /**
+     * Returns the value of column cat as it is written to the database:
+     * an Integer epoch day or null for dates, an int[] of walk-ins, a list
+     * of forms, the notes, or a Boolean flag. Names are not columns that
+     * change, so they return null.
+     */
+    public Object getColumn(Category cat) {
+        switch (cat) {
+            case indStart:
+                return dayValue(indStartDate);
+            case indEnd:
+                return dayValue(indEndDate);
+            case groupStart:
+                return dayValue(groupStartDate);
+            case groupEnd:
+                return dayValue(groupEndDate);
+            case checkInStart:
+                return dayValue(checkInStartDate);
+            case checkInEnd:
+                return dayValue(checkInEndDate);
+            case walkIns:
+                return getWalkIns();
+            case forms:
+                return new ArrayList<>(getForms());
+            case notes:
+                return getNotes();
+            case hasIEP:
+                return getIEP();
+            case has504:
+                return get504();
+            case hasEval:
+                return getEval();
+            default:
+                return null;
+        }
+    }
+
+    private static Integer dayValue(int day) {
+        return day == Dates.UNSET ? null : day;
     }
 
-    private final String firstName;
-    private final String lastName;
+    private int firstWalkInAfter(int date) {
+        int low = 0;
+        int high = walkInCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (walkIns[mid] <= date) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void setFlag(byte flag, boolean on) {
+        if (on) {
+            this.flags |= flag;
+        } else {
+            this.flags &= ~flag;
+        }
+    }
+
+    private static final byte IEP = 1;
+    private static final byte PLAN_504 = 2;
+    private static final byte EVAL = 4;
+
+    private int id = 0;
     private final String fullName;
-    private String indStartDate = null;
-    private String indEndDate = null;
-    private String groupStartDate = null;
-    private String groupEndDate = null;
-    private String checkInStartDate = null;
-    private String checkInEndDate = null;
-    private StringBuilder walkInDates = new StringBuilder("");
-    private StringBuilder forms = new StringBuilder("");
-    private StringBuilder notes = new StringBuilder("");
-    private boolean hasIEP = false;
-    private boolean has504 = false;
-    private boolean hasEval = false;
+    private int indStartDate = Dates.UNSET;
+    private int indEndDate = Dates.UNSET;
+    private int groupStartDate = Dates.UNSET;
+    private int groupEndDate = Dates.UNSET;
+    private int checkInStartDate = Dates.UNSET;
+    private int checkInEndDate = Dates.UNSET;
+    private int[] walkIns = new int[0];
+    private int walkInCount = 0;
+    private LinkedHashMap<String, Form> forms = null;
+    private String notes = "";
+    private byte flags = 0;
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Keeps loaded students in memory, keyed by id and found by full name. The
+ * whole students table can be preloaded with one streaming query; after that
+ * opening a student is a map lookup. The GUI edits the cached Student objects
+ * directly and queues each change, so the cache never goes stale. Once
+ * maxSize students are held, the least recently used one is dropped.
+ *
+ * @author Andrew Burch
+ */
+public class StudentCache {
+
+    public StudentCache(StudentStore store, int maxSize) {
+        this.store = store;
+        this.students = new LinkedHashMap<Integer, Student>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Integer, Student> eldest) {
+                if (size() > maxSize) {
+                    ids.remove(eldest.getValue().getFullName());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Loads every stored student that is not already cached, passing each
+     * student as held in the cache to loaded. Returns the number of students
+     * read.
+     */
+    public int preload(Consumer<Student> loaded) throws SQLException {
+        return store.loadAll(PRELOAD_FETCH_SIZE, student -> loaded.accept(
+                putIfAbsent(student)));
+    }
+
+    /**
+     * Loads the stored students among fullNames that are not already
+     * cached, as {@link #preload} does for all of them, without reading the
+     * rest of the table.
+     */
+    public int preload(Collection<String> fullNames, Consumer<Student> loaded)
+            throws SQLException {
+        return store.loadEach(fullNames, student -> loaded.accept(
+                putIfAbsent(student)));
+    }
+
+    /**
+     * Returns the cached student with the given full name, or null if they
+     * have to be loaded.
+     */
+    public synchronized Student lookup(String fullName) {
+        Integer id = ids.get(fullName);
+        Student student = id == null ? null : students.get(id);
+        if (student == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return student;
+    }
+
+    /**
+     * Returns the student with the given full name, loading or creating them
+     * in the database on a miss.
+     */
+    public Student get(String fullName) throws SQLException {
+        Student student = lookup(fullName);
+        return student != null ? student : load(fullName);
+    }
+
+    /**
+     * Loads the student with the given full name from the database, creating
+     * them if needed, and caches them.
+     */
+    public Student load(String fullName) throws SQLException {
+        Student loaded = store.load(fullName);
+        synchronized (this) {
+            //Another thread may have cached the same student meanwhile.
+            Integer id = ids.get(fullName);
+            if (id != null && students.containsKey(id)) {
+                return students.get(id);
+            }
+            put(loaded);
+            return loaded;
+        }
+    }
+
+    /**
+     * Returns whether the student with the given full name is cached,
+     * without counting a hit or miss.
+     */
+    public synchronized boolean contains(String fullName) {
+        Integer id = ids.get(fullName);
+        return id != null && students.containsKey(id);
+    }
+
+    public synchronized Student getById(int id) {
+        return students.get(id);
+    }
+
+    /**
+     * Caches student unless a student with the same full name already is,
+     * returning whichever is cached.
+     */
+    private synchronized Student putIfAbsent(Student student) {
+        Integer id = ids.get(student.getFullName());
+        Student cached = id == null ? null : students.get(id);
+        if (cached != null) {
+            return cached;
+        }
+        put(student);
+        return student;
+    }
+
+    public synchronized void put(Student student) {
+        students.put(student.getId(), student);
+        ids.put(student.getFullName(), student.getId());
+    }
+
+    /**
+     * Drops the student with the given id, returning them or null.
+     */
+    public synchronized Student remove(int id) {
+        Student student = students.remove(id);
+        if (student != null) {
+            ids.remove(student.getFullName());
+        }
+        return student;
+    }
+
+    /**
+     * Drops the student with the given full name, returning them or null.
+     */
+    public synchronized Student remove(String fullName) {
+        Integer id = ids.get(fullName);
+        return id == null ? null : remove(id);
+    }
+
+    public synchronized int size() {
+        return students.size();
+    }
+
+    public synchronized String getStats() {
+        return students.size() + " students cached, " + hits + " hits, "
+                + misses + " misses";
+    }
+
+    private static final int PRELOAD_FETCH_SIZE = 1000;
+    private final StudentStore store;
+    private final LinkedHashMap<Integer, Student> students;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private long hits = 0;
+    private long misses = 0;
+}
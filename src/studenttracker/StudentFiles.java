@@ -0,0 +1,498 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Index of the files in each student's folder under Student Files, kept in
+ * memory and in the student_files table. At startup one parallel walk brings
+ * the index up to date, hashing only files whose size or modification time
+ * changed since the last run; after that a {@link WatchService} reports
+ * every change, so nobody has to scan folders again.
+ * <p>
+ * Students' forms are reconciled with the index: a file dropped into a
+ * folder becomes a form, and a form whose file was deleted from a folder
+ * that still exists is dropped. Forms kept in the {@link AttachmentStore}
+ * are never dropped, and neither is anything in a folder that has gone
+ * missing, so an unmounted share cannot empty anyone's forms. The
+ * {@link WriteQueue} is flushed before each reconciliation, so a queued
+ * write of a student's whole forms list cannot land afterwards and drop the
+ * forms it adds.
+ *
+ * @author Andrew Burch
+ */
+public class StudentFiles implements AutoCloseable {
+
+    public StudentFiles(Database database, WriteQueue writeQueue, Path root,
+            int threads) {
+        this.database = database;
+        this.writeQueue = writeQueue;
+        this.root = root;
+        this.threads = threads;
+    }
+
+    /**
+     * Walks root, brings the persisted index up to date, reconciles every
+     * student's forms with it and starts watching for changes. From then on
+     * onChange is called, on the watching thread, with the full names of
+     * students whose forms changed. Returns the full names of the students
+     * whose forms this walk changed.
+     */
+    public Set<String> start(Consumer<Set<String>> onChange)
+            throws IOException, SQLException {
+        long started = System.nanoTime();
+        this.onChange = onChange;
+        Map<String, Map<String, Form>> persisted = loadPersisted();
+        watcher = root.getFileSystem().newWatchService();
+        register(root);
+        List<Path> folders = listFolders();
+        for (Path folder : folders) {
+            register(folder);
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Map<String, Map<String, Form>> walked;
+        try {
+            walked = pool.submit(() -> folders.parallelStream().collect(
+                    Collectors.toMap(StudentFiles::name, folder -> scan(
+                            folder, persisted.get(name(folder))))))
+                    .get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Student Files walk interrupted.", ie);
+        } catch (ExecutionException ee) {
+            throw new IOException("Could not walk Student Files: "
+                    + ee.getCause(), ee.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        Map<String, Map<String, Form>> after = new HashMap<>(walked);
+        for (String folder : persisted.keySet()) {
+            after.putIfAbsent(folder, null);
+        }
+        persist(persisted, after);
+        index.putAll(walked);
+        Set<String> reconciled = reconcile(walked.keySet());
+        int files = 0;
+        for (Map<String, Form> folder : walked.values()) {
+            files += folder.size();
+        }
+        System.out.println("Indexed " + files + " files in " + walked.size()
+                + " student folders in " + (System.nanoTime() - started)
+                / 1000000 + " ms, hashed " + hashed.get() + ", reconciled "
+                + reconciled.size() + " students");
+        if (unwatched > 0) {
+            System.err.println("Could not watch " + unwatched + " student "
+                    + "folders; their changes show up after a restart.");
+        }
+        Thread thread = new Thread(this::watch, "student-files-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return reconciled;
+    }
+
+    /**
+     * Files in the student's folder, by file name.
+     */
+    public List<Form> files(String fullName) {
+        Map<String, Form> folder = index.get(fullName);
+        return folder == null ? Collections.emptyList()
+                : new ArrayList<>(folder.values());
+    }
+
+    public boolean hasFolder(String fullName) {
+        return index.containsKey(fullName);
+    }
+
+    public boolean contains(String fullName, String fileName) {
+        Map<String, Form> folder = index.get(fullName);
+        return folder != null && folder.containsKey(fileName);
+    }
+
+    /**
+     * Attaches to student every file in their folder that is not yet one
+     * of their forms. Returns whether any were attached.
+     */
+    public boolean reconcile(Student student) {
+        boolean changed = false;
+        for (Form file : files(student.getFullName())) {
+            if (!student.hasForm(file.getFileName())) {
+                student.addForm(file);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException io) {
+                System.err.println("Could not stop watching Student Files: "
+                        + io);
+            }
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                //Let a burst of events, such as a large copy, settle first.
+                Set<Path> changed = new HashSet<>();
+                WatchKey key = watcher.take();
+                do {
+                    collect(key, changed);
+                } while ((key = watcher.poll(SETTLE_MILLIS,
+                        TimeUnit.MILLISECONDS)) != null);
+                try {
+                    Set<String> names = apply(changed);
+                    if (!names.isEmpty()) {
+                        onChange.accept(names);
+                    }
+                } catch (IOException | SQLException ex) {
+                    System.err.println("Could not index Student Files "
+                            + "changes: " + ex);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            //Closed.
+        }
+    }
+
+    /**
+     * Adds the folders key's events affect to changed.
+     */
+    private void collect(WatchKey key, Set<Path> changed) {
+        Path dir = watched.get(key);
+        if (dir == null) {
+            key.cancel();
+            return;
+        }
+        for (WatchEvent<?> event : key.pollEvents()) {
+            //Events in root are about folders; an overflow rescans them all.
+            if (dir.equals(root)
+                    && event.kind() != StandardWatchEventKinds.OVERFLOW) {
+                changed.add(root.resolve((Path) event.context()));
+            } else {
+                changed.add(dir);
+            }
+        }
+        if (!key.reset()) {
+            watched.remove(key);
+        }
+    }
+
+    /**
+     * Rescans the changed folders, or every folder if root itself is among
+     * them, and reconciles those that changed. Returns the full names of
+     * students whose forms changed.
+     */
+    private Set<String> apply(Set<Path> changed) throws IOException,
+            SQLException {
+        if (changed.remove(root)) {
+            changed.addAll(listFolders());
+            for (String folder : index.keySet()) {
+                changed.add(root.resolve(folder));
+            }
+        }
+        Map<String, Map<String, Form>> before = new HashMap<>();
+        Map<String, Map<String, Form>> after = new HashMap<>();
+        for (Path folder : changed) {
+            String name = name(folder);
+            before.put(name, index.get(name));
+            if (Files.isDirectory(folder)) {
+                if (!watched.containsValue(folder)) {
+                    register(folder);
+                }
+                after.put(name, scan(folder, index.get(name)));
+            } else {
+                after.put(name, null);
+            }
+        }
+        Set<String> updated = persist(before, after);
+        Set<String> live = new HashSet<>();
+        for (String name : updated) {
+            if (after.get(name) == null) {
+                index.remove(name);
+            } else {
+                index.put(name, after.get(name));
+                live.add(name);
+            }
+        }
+        return live.isEmpty() ? live : reconcile(live);
+    }
+
+    /**
+     * Lists folder's visible regular files, reusing the hashes in known for
+     * files whose size and modification time are unchanged. A folder that
+     * cannot be read keeps known.
+     */
+    private Map<String, Form> scan(Path folder, Map<String, Form> known) {
+        Map<String, Form> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            for (Path file : stream) {
+                String fileName = file.getFileName().toString();
+                Form form = describe(file, known == null ? null
+                        : known.get(fileName));
+                if (form != null) {
+                    files.put(fileName, form);
+                }
+            }
+        } catch (IOException io) {
+            System.err.println("Could not read " + folder + ": " + io);
+            return known == null ? Collections.emptyMap() : known;
+        }
+        return Collections.unmodifiableMap(files);
+    }
+
+    private Form describe(Path file, Form known) throws IOException {
+        String fileName = file.getFileName().toString();
+        if (fileName.startsWith(".")) {
+            return null;
+        }
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException nsf) {
+            return null;
+        }
+        if (!attrs.isRegularFile()) {
+            return null;
+        }
+        long size = attrs.size();
+        long modified = attrs.lastModifiedTime().toMillis();
+        if (known != null && known.getHash() != null
+                && known.getSize() == size
+                && known.getModified() == modified) {
+            return known;
+        }
+        hashed.incrementAndGet();
+        try {
+            return new Form(fileName, size, modified, FileTransfer.hash(file));
+        } catch (NoSuchFileException nsf) {
+            return null;
+        }
+    }
+
+    private Map<String, Map<String, Form>> loadPersisted()
+            throws SQLException {
+        return database.run("load student files index", db -> {
+            Map<String, Map<String, Form>> folders = new HashMap<>();
+            try (ResultSet rs = db.prepare("select folder, fileName, size, "
+                    + "modified, hash from student_files;").executeQuery()) {
+                while (rs.next()) {
+                    folders.computeIfAbsent(rs.getString(1),
+                            folder -> new TreeMap<>()).put(rs.getString(2),
+                            new Form(rs.getString(2), rs.getLong(3),
+                                    rs.getLong(4), rs.getString(5)));
+                }
+            }
+            return folders;
+        });
+    }
+
+    /**
+     * Writes the difference between before and after to student_files in
+     * one transaction. A null folder in after has gone. Returns the folders
+     * that differed.
+     */
+    private Set<String> persist(Map<String, Map<String, Form>> before,
+            Map<String, Map<String, Form>> after) throws SQLException {
+        return database.transaction("update student files index", db -> {
+            PreparedStatement upsert = db.prepare("insert or replace into "
+                    + "student_files (folder, fileName, size, modified, hash) "
+                    + "values (?, ?, ?, ?, ?);");
+            PreparedStatement delete = db.prepare("delete from student_files "
+                    + "where folder = ? and fileName = ?;");
+            Set<String> updated = new HashSet<>();
+            for (Map.Entry<String, Map<String, Form>> entry
+                    : after.entrySet()) {
+                String folder = entry.getKey();
+                if (entry.getValue() == null && before.get(folder) == null) {
+                    continue;
+                }
+                Map<String, Form> old = before.get(folder) == null
+                        ? Collections.emptyMap() : before.get(folder);
+                Map<String, Form> now = entry.getValue() == null
+                        ? Collections.emptyMap() : entry.getValue();
+                if (entry.getValue() == null || before.get(folder) == null) {
+                    updated.add(folder);
+                }
+                for (Form form : now.values()) {
+                    if (old.get(form.getFileName()) != form) {
+                        upsert.setString(1, folder);
+                        upsert.setString(2, form.getFileName());
+                        upsert.setLong(3, form.getSize());
+                        upsert.setLong(4, form.getModified());
+                        upsert.setString(5, form.getHash());
+                        upsert.addBatch();
+                        updated.add(folder);
+                    }
+                }
+                for (String fileName : old.keySet()) {
+                    if (!now.containsKey(fileName)) {
+                        delete.setString(1, folder);
+                        delete.setString(2, fileName);
+                        delete.addBatch();
+                        updated.add(folder);
+                    }
+                }
+            }
+            upsert.executeBatch();
+            delete.executeBatch();
+            return updated;
+        });
+    }
+
+    /**
+     * Adds a form for every indexed file in folders without one, and drops
+     * folder forms whose file is gone, in one transaction. Only folders that
+     * exist should be passed. Returns the full names of the students whose
+     * forms changed.
+     */
+    private Set<String> reconcile(Collection<String> folders)
+            throws SQLException {
+        writeQueue.flush();
+        return database.transaction("reconcile forms", db -> {
+            try (Statement stat = db.connection().createStatement()) {
+                stat.executeUpdate("create temp table if not exists "
+                        + "reconcile_folders (folder text primary key);");
+                stat.executeUpdate("delete from temp.reconcile_folders;");
+            }
+            PreparedStatement add = db.prepare("insert into "
+                    + "temp.reconcile_folders (folder) values (?);");
+            for (String folder : folders) {
+                add.setString(1, folder);
+                add.addBatch();
+            }
+            add.executeBatch();
+            Set<String> names = new HashSet<>();
+            for (String sql : new String[]{"select distinct s.fullName "
+                    + MISSING_FORMS, "select distinct s.fullName "
+                    + MISSING_FILES}) {
+                try (ResultSet rs = db.prepare(sql + ";").executeQuery()) {
+                    while (rs.next()) {
+                        names.add(rs.getString(1));
+                    }
+                }
+            }
+            if (!names.isEmpty()) {
+                db.prepare("insert into forms (student_id, fileName, size, "
+                        + "modified, hash) select s.id, f.fileName, f.size, "
+                        + "f.modified, f.hash " + MISSING_FORMS + ";")
+                        .executeUpdate();
+                db.prepare("delete from forms where rowid in (select m.rowid "
+                        + MISSING_FILES + ");").executeUpdate();
+                StudentSearch.reindex(db, ids(db, names));
+            }
+            return names;
+        });
+    }
+
+    private static List<Integer> ids(Database db, Set<String> names)
+            throws SQLException {
+        PreparedStatement query = db.prepare("select id from students where "
+                + "fullName = ?;");
+        List<Integer> ids = new ArrayList<>();
+        for (String name : names) {
+            query.setString(1, name);
+            try (ResultSet rs = query.executeQuery()) {
+                if (rs.next()) {
+                    ids.add(rs.getInt(1));
+                }
+            }
+        }
+        return ids;
+    }
+
+    private List<Path> listFolders() throws IOException {
+        try (Stream<Path> list = Files.list(root)) {
+            return list.filter(Files::isDirectory).collect(
+                    Collectors.toList());
+        }
+    }
+
+    private void register(Path dir) {
+        try {
+            watched.put(dir.register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY), dir);
+        } catch (IOException io) {
+            unwatched++;
+        }
+    }
+
+    private static String name(Path folder) {
+        return folder.getFileName().toString();
+    }
+
+    /**
+     * Indexed files in the reconciled folders that are not forms yet.
+     */
+    private static final String MISSING_FORMS = "from student_files f join "
+            + "students s on s.fullName = f.folder where f.folder in (select "
+            + "folder from temp.reconcile_folders) and not exists (select 1 "
+            + "from forms where student_id = s.id and fileName = f.fileName)";
+
+    /**
+     * Forms of students with reconciled folders that are not in the
+     * attachment store and whose file is no longer in the folder.
+     */
+    private static final String MISSING_FILES = "from forms m join students "
+            + "s on s.id = m.student_id where s.fullName in (select folder "
+            + "from temp.reconcile_folders) and (m.hash is null or not exists "
+            + "(select 1 from attachments a where a.hash = m.hash)) and not "
+            + "exists (select 1 from student_files f where f.folder = "
+            + "s.fullName and f.fileName = m.fileName)";
+
+    private static final long SETTLE_MILLIS = 500;
+
+    private final Database database;
+    private final WriteQueue writeQueue;
+    private final Path root;
+    private final int threads;
+    private final Map<String, Map<String, Form>> index
+            = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Path> watched = new ConcurrentHashMap<>();
+    private final AtomicInteger hashed = new AtomicInteger();
+    private WatchService watcher;
+    private Consumer<Set<String>> onChange;
+    private int unwatched = 0;
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Full-text search over student notes and attached form names, backed by the
+ * student_search FTS5 table. Rows are keyed by student id and are refreshed
+ * by {@link WriteQueue} in the same transaction that writes notes or forms,
+ * so the index never runs ahead of or behind the students table.
+ *
+ * @author Andrew Burch
+ */
+public class StudentSearch {
+
+    /**
+     * Inserts the search rows of students s, with form names joined by
+     * spaces.
+     */
+    static final String INDEX_STUDENTS = "insert into student_search "
+            + "(rowid, notes, forms) select s.id, s.notes, coalesce((select "
+            + "group_concat(fileName, ' ') from forms where student_id = "
+            + "s.id), '') from students s";
+
+    public static final class Hit {
+
+        Hit(int id, String fullName, String snippet, double rank) {
+            this.id = id;
+            this.fullName = fullName;
+            this.snippet = snippet;
+            this.rank = rank;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getFullName() {
+            return fullName;
+        }
+
+        /**
+         * The best matching fragment of the notes or form names, with
+         * matched words in [brackets].
+         */
+        public String getSnippet() {
+            return snippet;
+        }
+
+        /**
+         * BM25 rank; lower is a better match.
+         */
+        public double getRank() {
+            return rank;
+        }
+
+        @Override
+        public String toString() {
+            return fullName + ": " + snippet;
+        }
+
+        private final int id;
+        private final String fullName;
+        private final String snippet;
+        private final double rank;
+    }
+
+    public StudentSearch(Database database) {
+        this.database = database;
+    }
+
+    /**
+     * Returns up to limit students whose notes or form names contain every
+     * word of text, best match first. The last word matches as a prefix, so
+     * results can be shown while a word is still being typed.
+     */
+    public List<Hit> search(String text, int limit) throws SQLException {
+        String query = toQuery(text);
+        List<Hit> hits = new ArrayList<>();
+        if (query.isEmpty()) {
+            return hits;
+        }
+        return database.run("search notes", db -> {
+            PreparedStatement prep = db.prepare("select s.id, s.fullName, "
+                    + "snippet(student_search, -1, '[', ']', '...', 12), "
+                    + "bm25(student_search) as rank from student_search "
+                    + "join students s on s.id = student_search.rowid "
+                    + "where student_search match ? order by rank limit ?;");
+            prep.setString(1, query);
+            prep.setInt(2, limit);
+            try (ResultSet rs = prep.executeQuery()) {
+                while (rs.next()) {
+                    hits.add(new Hit(rs.getInt(1), rs.getString(2),
+                            rs.getString(3), rs.getDouble(4)));
+                }
+            }
+            return hits;
+        });
+    }
+
+    /**
+     * Rewrites the search rows of the given students from their current
+     * notes and forms. Must be called inside the transaction that changed
+     * them.
+     */
+    static void reindex(Database db, Collection<Integer> ids)
+            throws SQLException {
+        PreparedStatement delete = db.prepare("delete from student_search "
+                + "where rowid = ?;");
+        PreparedStatement insert = db.prepare(INDEX_STUDENTS
+                + " where s.id = ?;");
+        for (int id : ids) {
+            delete.setInt(1, id);
+            delete.addBatch();
+            insert.setInt(1, id);
+            insert.addBatch();
+        }
+        delete.executeBatch();
+        insert.executeBatch();
+    }
+
+    /**
+     * Turns typed text into an FTS5 query: each word is quoted so that
+     * punctuation is never read as query syntax, and the last word is
+     * matched as a prefix.
+     */
+    static String toQuery(String text) {
+        StringBuilder query = new StringBuilder();
+        for (String word : text.trim().split("\\s+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (query.length() > 0) {
+                query.append(' ');
+            }
+            query.append('"').append(word.replace("\"", "\"\"")).append('"');
+        }
+        if (query.length() > 0) {
+            query.append('*');
+        }
+        return query.toString();
+    }
+
+    private final Database database;
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Reads and creates rows of the students table. Students are keyed by an
+ * integer id, and looked up by the unique index on fullName.
+ *
+ * @author Andrew Burch
+ */
+public class StudentStore {
+
+    static final String COLUMNS = "id, fullName, firstName, lastName, "
+            + "indStart, indEnd, groupStart, groupEnd, checkInStart, "
+            + "checkInEnd, notes, hasIEP, has504, hasEval";
+
+    static final String FORM_COLUMNS = "student_id, fileName, size, "
+            + "modified, hash";
+
+    //Students read by loadEach per database call.
+    static final int LOAD_CHUNK = 100;
+
+    public StudentStore(Database database) {
+        this.database = database;
+    }
+
+    /**
+     * Returns the stored student with the given full name, creating an empty
+     * row for them first if there is none.
+     */
+    public Student load(String fullName) throws SQLException {
+        Student student = new Student(fullName);
+        return database.transaction("load student", db -> {
+            PreparedStatement upsert = db.prepare("insert into students "
+                    + "(fullName, firstName, lastName) values (?, ?, ?) "
+                    + "on conflict (fullName) do nothing;");
+            upsert.setString(1, student.getFullName());
+            upsert.setString(2, student.getFirstName());
+            upsert.setString(3, student.getLastName());
+            upsert.executeUpdate();
+            if (!readStudent(db, student)) {
+                throw new SQLException("No row for " + fullName);
+            }
+            return student;
+        });
+    }
+
+    /**
+     * Passes each stored student named in fullNames to consumer, skipping
+     * names with no row. Reads LOAD_CHUNK students per database call, so
+     * the write queue and the GUI get the connection in between. Returns
+     * the number of students read.
+     */
+    public int loadEach(Collection<String> fullNames,
+            Consumer<Student> consumer) throws SQLException {
+        List<String> names = new ArrayList<>(fullNames);
+        int count = 0;
+        for (int from = 0; from < names.size(); from += LOAD_CHUNK) {
+            List<String> chunk = names.subList(from, Math.min(names.size(),
+                    from + LOAD_CHUNK));
+            List<Student> loaded = database.run("load " + chunk.size()
+                    + " students", db -> {
+                List<Student> students = new ArrayList<>(chunk.size());
+                for (String fullName : chunk) {
+                    Student student = new Student(fullName);
+                    if (readStudent(db, student)) {
+                        students.add(student);
+                    }
+                }
+                return students;
+            });
+            for (Student student : loaded) {
+                consumer.accept(student);
+            }
+            count += loaded.size();
+        }
+        return count;
+    }
+
+    /**
+     * Reads the stored row, walk-ins and forms of student, found by full
+     * name, into it. Returns false if there is no row.
+     */
+    private static boolean readStudent(Database db, Student student)
+            throws SQLException {
+        PreparedStatement query = db.prepare("select " + COLUMNS
+                + " from students where fullName = ?;");
+        query.setString(1, student.getFullName());
+        try (ResultSet rs = query.executeQuery()) {
+            if (!rs.next()) {
+                return false;
+            }
+            read(rs, student);
+        }
+        PreparedStatement walkIns = db.prepare("select day from walk_ins "
+                + "where student_id = ? order by day;");
+        walkIns.setInt(1, student.getId());
+        try (ResultSet rs = walkIns.executeQuery()) {
+            while (rs.next()) {
+                student.addWalkIn(rs.getInt(1));
+            }
+        }
+        PreparedStatement forms = db.prepare("select " + FORM_COLUMNS
+                + " from forms where student_id = ? order by rowid;");
+        forms.setInt(1, student.getId());
+        try (ResultSet rs = forms.executeQuery()) {
+            while (rs.next()) {
+                student.addForm(readForm(rs));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Streams every stored student to consumer, reading fetchSize rows at a
+     * time. Students, their walk-ins and their forms are read by three
+     * cursors in student id order and merged, so memory use does not grow
+     * with the table. Returns the number of students read.
+     */
+    public int loadAll(int fetchSize, Consumer<Student> consumer)
+            throws SQLException {
+        return database.run("load all students", db -> {
+            PreparedStatement query = db.prepare("select " + COLUMNS
+                    + " from students order by id;");
+            query.setFetchSize(fetchSize);
+            PreparedStatement walkIns = db.prepare("select student_id, day "
+                    + "from walk_ins order by student_id, day;");
+            walkIns.setFetchSize(fetchSize);
+            PreparedStatement forms = db.prepare("select " + FORM_COLUMNS
+                    + " from forms order by student_id, rowid;");
+            forms.setFetchSize(fetchSize);
+            int count = 0;
+            try (ResultSet rs = query.executeQuery();
+                    ResultSet walkInRs = walkIns.executeQuery();
+                    ResultSet formRs = forms.executeQuery()) {
+                boolean moreWalkIns = walkInRs.next();
+                boolean moreForms = formRs.next();
+                while (rs.next()) {
+                    Student student = new Student(rs.getString("fullName"));
+                    read(rs, student);
+                    while (moreWalkIns && walkInRs.getInt(1) <= student.getId()) {
+                        if (walkInRs.getInt(1) == student.getId()) {
+                            student.addWalkIn(walkInRs.getInt(2));
+                        }
+                        moreWalkIns = walkInRs.next();
+                    }
+                    while (moreForms && formRs.getInt("student_id")
+                            <= student.getId()) {
+                        if (formRs.getInt("student_id") == student.getId()) {
+                            student.addForm(readForm(formRs));
+                        }
+                        moreForms = formRs.next();
+                    }
+                    consumer.accept(student);
+                    count++;
+                }
+            }
+            return count;
+        });
+    }
+
+    /**
+     * Counts one student's walk-ins from one date to another, inclusive,
+     * using the (student_id, day) index.
+     */
+    public int countWalkIns(int studentId, int from, int to)
+            throws SQLException {
+        return database.run("count walk-ins", db -> {
+            PreparedStatement query = db.prepare("select count(*) from "
+                    + "walk_ins where student_id = ? and day between ? and ?;");
+            query.setInt(1, studentId);
+            query.setInt(2, from);
+            query.setInt(3, to);
+            try (ResultSet rs = query.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        });
+    }
+
+    /**
+     * Creates a row for every {firstName, lastName} pair that has none, in
+     * one transaction. Returns the number of students added.
+     */
+    public int addAll(List<String[]> names) throws SQLException {
+        return database.transaction("add " + names.size() + " students",
+                db -> {
+            PreparedStatement upsert = db.prepare("insert into students "
+                    + "(fullName, firstName, lastName) values (?, ?, ?) "
+                    + "on conflict (fullName) do nothing;");
+            for (String[] name : names) {
+                upsert.setString(1, name[0] + " " + name[1]);
+                upsert.setString(2, name[0]);
+                upsert.setString(3, name[1]);
+                upsert.addBatch();
+            }
+            int added = 0;
+            for (int count : upsert.executeBatch()) {
+                added += Math.max(count, 0);
+            }
+            return added;
+        });
+    }
+
+    /**
+     * Records a walk-in for each student in fullNames on the matching entry
+     * of days, creating students that have no row, in one transaction. A
+     * walk-in the student already has that day is skipped, so the same file
+     * can be added twice. Returns the number of walk-ins recorded.
+     */
+    public int addWalkIns(List<String> fullNames, List<Integer> days)
+            throws SQLException {
+        return database.transaction("add " + fullNames.size() + " walk-ins",
+                db -> {
+            PreparedStatement upsert = db.prepare("insert into students "
+                    + "(fullName, firstName, lastName) values (?, ?, ?) "
+                    + "on conflict (fullName) do nothing;");
+            PreparedStatement insert = db.prepare("insert into walk_ins "
+                    + "(student_id, day) select id, ? from students s where "
+                    + "fullName = ? and not exists (select 1 from walk_ins "
+                    + "where student_id = s.id and day = ?);");
+            for (int i = 0; i < fullNames.size(); i++) {
+                Student student = new Student(fullNames.get(i));
+                upsert.setString(1, student.getFullName());
+                upsert.setString(2, student.getFirstName());
+                upsert.setString(3, student.getLastName());
+                upsert.addBatch();
+                insert.setInt(1, days.get(i));
+                insert.setString(2, student.getFullName());
+                insert.setInt(3, days.get(i));
+                insert.addBatch();
+            }
+            upsert.executeBatch();
+            int added = 0;
+            for (int count : insert.executeBatch()) {
+                added += Math.max(count, 0);
+            }
+            return added;
+        });
+    }
+
+    /**
+     * Merges the service dates and walk-ins of students into the stored
+     * students, creating students that have no row, in one transaction.
+     * UNSET dates leave the stored date alone, and walk-ins already stored
+     * for the same day are skipped. Returns the number of walk-ins recorded.
+     */
+    public int addHistory(Collection<Student> students) throws SQLException {
+        return database.transaction("add history for " + students.size()
+                + " students", db -> {
+            PreparedStatement upsert = db.prepare("insert into students "
+                    + "(fullName, firstName, lastName) values (?, ?, ?) "
+                    + "on conflict (fullName) do nothing;");
+            PreparedStatement dates = db.prepare("update students set "
+                    + "indStart = coalesce(?, indStart), "
+                    + "indEnd = coalesce(?, indEnd), "
+                    + "groupStart = coalesce(?, groupStart), "
+                    + "groupEnd = coalesce(?, groupEnd), "
+                    + "checkInStart = coalesce(?, checkInStart), "
+                    + "checkInEnd = coalesce(?, checkInEnd) "
+                    + "where fullName = ?;");
+            PreparedStatement walkIn = db.prepare("insert into walk_ins "
+                    + "(student_id, day) select id, ? from students s where "
+                    + "fullName = ? and not exists (select 1 from walk_ins "
+                    + "where student_id = s.id and day = ?);");
+            for (Student student : students) {
+                upsert.setString(1, student.getFullName());
+                upsert.setString(2, student.getFirstName());
+                upsert.setString(3, student.getLastName());
+                upsert.addBatch();
+                int[] days = {student.getStartInd(), student.getEndInd(),
+                    student.getStartGroup(), student.getEndGroup(),
+                    student.getStartCheckIn(), student.getEndCheckIn()};
+                boolean anyDates = false;
+                for (int i = 0; i < days.length; i++) {
+                    anyDates |= days[i] != Dates.UNSET;
+                    dates.setObject(i + 1, days[i] == Dates.UNSET ? null
+                            : days[i]);
+                }
+                if (anyDates) {
+                    dates.setString(days.length + 1, student.getFullName());
+                    dates.addBatch();
+                }
+                for (int day : student.getWalkIns()) {
+                    walkIn.setInt(1, day);
+                    walkIn.setString(2, student.getFullName());
+                    walkIn.setInt(3, day);
+                    walkIn.addBatch();
+                }
+            }
+            upsert.executeBatch();
+            dates.executeBatch();
+            int added = 0;
+            for (int count : walkIn.executeBatch()) {
+                added += Math.max(count, 0);
+            }
+            return added;
+        });
+    }
+
+    /**
+     * Returns the id of each student in fullNames, creating rows for those
+     * that have none, in one transaction.
+     */
+    public Map<String, Integer> ids(Collection<String> fullNames)
+            throws SQLException {
+        return database.transaction("find " + fullNames.size()
+                + " students", db -> {
+            PreparedStatement upsert = db.prepare("insert into students "
+                    + "(fullName, firstName, lastName) values (?, ?, ?) "
+                    + "on conflict (fullName) do nothing;");
+            for (String fullName : fullNames) {
+                Student student = new Student(fullName);
+                upsert.setString(1, student.getFullName());
+                upsert.setString(2, student.getFirstName());
+                upsert.setString(3, student.getLastName());
+                upsert.addBatch();
+            }
+            upsert.executeBatch();
+            PreparedStatement query = db.prepare("select id from students "
+                    + "where fullName = ?;");
+            Map<String, Integer> ids = new HashMap<>();
+            for (String fullName : fullNames) {
+                query.setString(1, fullName);
+                try (ResultSet rs = query.executeQuery()) {
+                    if (rs.next()) {
+                        ids.put(fullName, rs.getInt(1));
+                    }
+                }
+            }
+            return ids;
+        });
+    }
+
+    /**
+     * Attaches forms.get(i) to the student with ids.get(i), replacing any
+     * form of theirs with the same file name, in one transaction. Also
+     * records each form's file as stored in the {@link AttachmentStore}, so
+     * files stored without recording them are saved with their forms.
+     */
+    public void addForms(List<Integer> ids, List<Form> forms)
+            throws SQLException {
+        database.transaction("add " + forms.size() + " forms", db -> {
+            PreparedStatement record = db.prepare("insert into attachments "
+                    + "(hash, size, stored) values (?, ?, ?) on conflict "
+                    + "(hash) do update set stored = excluded.stored;");
+            long now = System.currentTimeMillis();
+            for (Form form : forms) {
+                record.setString(1, form.getHash());
+                record.setLong(2, form.getSize());
+                record.setLong(3, now);
+                record.addBatch();
+            }
+            record.executeBatch();
+            PreparedStatement upsert = db.prepare("insert into forms ("
+                    + FORM_COLUMNS + ") values (?, ?, ?, ?, ?) on conflict "
+                    + "(student_id, fileName) do update set size = "
+                    + "excluded.size, modified = excluded.modified, hash = "
+                    + "excluded.hash;");
+            for (int i = 0; i < forms.size(); i++) {
+                Form form = forms.get(i);
+                upsert.setInt(1, ids.get(i));
+                upsert.setString(2, form.getFileName());
+                upsert.setLong(3, form.getSize());
+                upsert.setLong(4, form.getModified());
+                upsert.setString(5, form.getHash());
+                upsert.addBatch();
+            }
+            upsert.executeBatch();
+            StudentSearch.reindex(db, new HashSet<>(ids));
+            return null;
+        });
+    }
+
+    /**
+     * Copies the columns of the current row of rs into student.
+     */
+    static void read(ResultSet rs, Student student) throws SQLException {
+        student.setId(rs.getInt("id"));
+        student.setStartInd(readDay(rs, "indStart"));
+        student.setEndInd(readDay(rs, "indEnd"));
+        student.setStartGroup(readDay(rs, "groupStart"));
+        student.setEndGroup(readDay(rs, "groupEnd"));
+        student.setStartCheckIn(readDay(rs, "checkInStart"));
+        student.setEndCheckIn(readDay(rs, "checkInEnd"));
+        student.setNotes(rs.getString("notes"));
+        student.setIEP(rs.getBoolean("hasIEP"));
+        student.set504(rs.getBoolean("has504"));
+        student.setEval(rs.getBoolean("hasEval"));
+    }
+
+    private static Form readForm(ResultSet rs) throws SQLException {
+        return new Form(rs.getString("fileName"), rs.getLong("size"),
+                rs.getLong("modified"), rs.getString("hash"));
+    }
+
+    private static int readDay(ResultSet rs, String column)
+            throws SQLException {
+        int day = rs.getInt(column);
+        return rs.wasNull() ? Dates.UNSET : day;
+    }
+
+    private final Database database;
+}
@@ -7,31 +7,39 @@ package studenttracker;
 
 import java.awt.Desktop;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.net.URISyntaxException;
-import java.nio.channels.FileChannel;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import javafx.application.Application;
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
-import javafx.collections.transformation.FilteredList;
+import javafx.collections.ListChangeListener;
 import javafx.event.ActionEvent;
+import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
@@ -41,29 +49,26 @@ import javafx.scene.control.ListView;
 import javafx.scene.control.Menu;
 import javafx.scene.control.MenuBar;
 import javafx.scene.control.MenuItem;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.control.ProgressIndicator;
 import javafx.scene.control.ScrollPane;
 import javafx.scene.control.TextField;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import javafx.scene.text.Text;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 
 import static javafx.scene.control.OverrunStyle.LEADING_ELLIPSIS;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.Collections;
+import java.text.ParseException;
+import java.time.format.DateTimeParseException;
 import java.util.Optional;
-import java.util.regex.Pattern;
 import java.util.zip.DataFormatException;
 import javafx.scene.control.TextInputDialog;
 import javafx.scene.layout.GridPane;
@@ -85,12 +90,40 @@ public class StudentTracker extends Application {
     String resourcePath;
     String studentFilesPath;
     static String dbName = "students";
-    List<String[]> backgroundList = new ArrayList<>();
-
-    enum Category {
-        fullName, firstName, lastName, indStart, indEnd, groupStart, groupEnd,
-        checkInStart, checkInEnd, walkIns, forms, notes, hasIEP, has504, hasEval
-    }
+    Database database;
+    WriteQueue writeQueue;
+    ChangeJournal changeJournal;
+    StudentStore studentStore;
+    StudentSearch studentSearch;
+    Archive archive;
+    AttachmentStore attachmentStore;
+    FileTransfer fileTransfer;
+    StudentFiles studentFiles;
+    StudentCache studentCache;
+    Background background;
+    //Swapped and changed under rosterLock, on whichever thread does it.
+    volatile Roster roster;
+    final Object rosterLock = new Object();
+    ObservableList<String> studentList = FXCollections.observableArrayList();
+    String studentListPath;
+    StringProperty studentListText = new SimpleStringProperty();
+    Label listStatusText;
+    NameIndex nameIndex;
+    CaseloadIndex caseloadIndex = new CaseloadIndex();
+    CaseloadIndex.Filter caseloadFilter;
+    CaseloadReport caseloadReport = new CaseloadReport();
+    Runnable refreshVisibleList;
+    List<String> indexedList;
+    //Journaled student list changes allowed before the list is rewritten.
+    static final int ROSTER_JOURNAL_LIMIT = 500;
+    //Longest a journaled change waits to be forced to disk, and the most
+    //changes that wait together.
+    static final long CHANGE_SYNC_MILLIS = 200;
+    static final int CHANGE_SYNC_ENTRIES = 64;
+    //Columns set together by the modify student dialog.
+    static final Set<Category> SERVICE_DATES = EnumSet.of(Category.indStart,
+            Category.indEnd, Category.groupStart, Category.groupEnd,
+            Category.checkInStart, Category.checkInEnd);
 
     @Override
 
@@ -100,311 +133,334 @@ public class StudentTracker extends Application {
         resourcePath = userPath + File.separator + "Resources";
         studentFilesPath = resourcePath + File.separator + "Student Files";
 
-        //Check on Databasse
-        checkDatabase();
-
         //Create resources folder if it does not exist.
         new File(resourcePath).mkdir();
         new File(studentFilesPath).mkdir();
+        background = new Background(2);
+        fileTransfer = new FileTransfer(2);
+        //Check on Databasse
+        try {
+            checkDatabase();
+        } catch (SQLException | IOException ex) {
+            //Every window edits the database; there is nothing to show.
+            System.err.println("Could not open student data: " + ex);
+            Alert failed = new Alert(Alert.AlertType.ERROR, "Student Tracker "
+                    + "could not open its data under " + resourcePath + ": "
+                    + ex.getMessage());
+            failed.showAndWait();
+            Platform.exit();
+            return;
+        }
         //Obtain properties from properties file or create a properties file if none exists.
         Properties properties = new Properties();
         establishProperties(properties);
 
-        List<String> studentList = new ArrayList<>();
         //Create GUI.
         Image okImage = new Image(getClass().getResourceAsStream(
                 "OKButton.png"), 55, 33, true, true);
-        Scene scene = new Scene(createLayout(studentList, properties,
-                primaryStage));
+        Scene scene = new Scene(createLayout(properties, primaryStage));
         scene.getStylesheets().add(StudentTracker.class.getResource(
                 "Main.css").toExternalForm());
         primaryStage.setTitle("Student Tracker");
         primaryStage.setResizable(false);
         primaryStage.setScene(scene);
         primaryStage.show();
+        background.submit(this::preloadStudents, count -> System.out.println(
+                "Preloaded " + count + " students"));
+        background.submit(() -> attachmentStore.collect(
+                AttachmentStore.GRACE_MILLIS));
+        studentFiles = new StudentFiles(database, writeQueue, Paths.get(
+                studentFilesPath), Runtime.getRuntime().availableProcessors());
+        background.submit(() -> studentFiles.start(changed -> Platform
+                .runLater(() -> reloadStudents(changed))),
+                this::reloadStudents, ex -> System.err.println(
+                        "Could not index Student Files: " + ex));
     }
 
-    public static void main(String[] args) {
-        launch(args);
+    /**
+     * Loads every student not yet cached and adds them to the caseload index
+     * and report. Returns the number of students read.
+     */
+    private int preloadStudents() throws SQLException {
+        return studentCache.preload(student -> {
+            caseloadIndex.update(student);
+            caseloadReport.update(student);
+        });
     }
 
-    private void checkDatabase() {
-        File file = new File(dbName + ".db");
-//        if (!file.exists()) {
-        try {
-            Class.forName("org.sqlite.JDBC");
-            try {
-                Connection conn
-                        = DriverManager.getConnection("jdbc:sqlite:" + resourcePath + File.separator + dbName + ".db");
-                Statement stat = conn.createStatement();
-                try {
-                    stat.executeUpdate("drop table if exists students;");
-                    stat.executeUpdate("drop table if exists archive;");
-                    System.out.println("Dropping students table");
-                } catch (SQLException sql) {
-                    System.err.println("Could not drop table students.");
-                }
-                try {
-                    stat.executeUpdate("create table students (fullName, "
-                            + "firstName, lastName, indStart, indEnd, "
-                            + "groupStart, groupEnd, checkInStart, checkInEnd, "
-                            + "walkIns, forms, notes, hasIEP, has504, hasEval);");
-                    stat.executeUpdate("create table archive (fullName, "
-                            + "firstName, lastName, indStart, indEnd, "
-                            + "groupStart, groupEnd, checkInStart, checkInEnd, "
-                            + "walkIns, forms, notes, hasIEP, has504, hasEval);");
-                } catch (SQLException sql) {
-                    System.err.println("Could not update table.");
-                }
-            } catch (SQLException sql) {
-                System.err.println("Could not connect to database "
-                        + dbName);
-            }
-        } catch (ClassNotFoundException cnf) {
-            System.err.println("Could not find java database class");
+    /**
+     * Loads the students among fullNames that are not yet cached, and adds
+     * them to the caseload index and report, without reading anyone else.
+     */
+    private int preloadStudents(Collection<String> fullNames)
+            throws SQLException {
+        return studentCache.preload(fullNames, student -> {
+            caseloadIndex.update(student);
+            caseloadReport.update(student);
+        });
+    }
+
+    /**
+     * Drops a student whose stored record changed behind the cache's back
+     * from the cache, caseload index and report.
+     */
+    private void forgetStudent(String fullName) {
+        Student stale = studentCache.remove(fullName);
+        if (stale != null) {
+            caseloadIndex.remove(stale.getId());
+            caseloadReport.remove(stale.getId());
         }
-//        }
     }
 
-    private void modifyDatabase(Category cat, Student student) {
-        try {
-            Class.forName("org.sqlite.JDBC");
-            try {
-                Connection conn = DriverManager.getConnection("jdbc:sqlite:"
-                        + dbName + ".db");
-                String val = null;
-                switch (cat.toString()) {
-                    case "indStart":
-                        val = student.getStartInd();
-                        break;
-                    case "indEnd":
-                        val = student.getEndInd();
-                        break;
-                    case "groupStart":
-                        val = student.getStartGroup();
-                        break;
-                    case "groupEnd":
-                        val = student.getEndGroup();
-                        break;
-                    case "checkInStart":
-                        val = student.getStartCheckIn();
-                        break;
-                    case "checkInEnd":
-                        val = student.getEndCheckIn();
-                        break;
-                    case "walkIns":
-                        val = student.getWalkIns();
-                        break;
-                    case "forms":
-                        val = student.getForms();
-                        break;
-                    case "notes":
-                        val = student.getNotes();
-                        break;
-                    case "hasIEP":
-                        val = String.valueOf(student.getIEP());
-                        break;
-                    case "has504":
-                        val = String.valueOf(student.get504());
-                        break;
-                    case "hasEval":
-                        val = String.valueOf(student.getEval());
-                    default:
-                }
-                try {
-                    PreparedStatement update = conn.prepareStatement("update "
-                            + "students set " + cat.toString() + " = '" + val
-                            + "' where fullName = '" + student.getFullName()
-                            + "';");
-                    update.addBatch();
-                    conn.setAutoCommit(false);
-                    update.executeBatch();
-                    conn.setAutoCommit(true);
-                    System.out.println("Database modified, " + cat.toString()
-                            + " set to " + val + ".");
-                } catch (SQLException sql) {
-                    System.err.println("Unable to prepare statement.");
+    private void reloadStudents(Collection<String> fullNames) {
+        //Reads the forms of cached students whose Student Files changed and
+        //updates them in place, so a window showing one of them goes on
+        //editing the current copy. Runs on the FX thread.
+        List<String> cached = new ArrayList<>();
+        for (String fullName : fullNames) {
+            if (studentCache.contains(fullName)) {
+                cached.add(fullName);
+            }
+        }
+        if (cached.isEmpty()) {
+            return;
+        }
+        background.submit(() -> {
+            //Save queued edits first, or they would be read back stale.
+            writeQueue.flush();
+            List<Student> stored = new ArrayList<>();
+            studentStore.loadEach(cached, stored::add);
+            return stored;
+        }, stored -> {
+            for (Student loaded : stored) {
+                Student student = studentCache.getById(loaded.getId());
+                if (student != null) {
+                    student.setForms(loaded.getForms());
+                    caseloadIndex.update(student);
+                    caseloadReport.update(student);
                 }
-
-                conn.close();
-            } catch (SQLException sql) {
-                System.err.println("Could not connect to database for modification.");
             }
-        } catch (ClassNotFoundException cnf) {
-            System.err.println("Could not find class org.sqlite.JDBC");
+            refreshVisibleList.run();
+        }, ex -> System.err.println("Could not reload students: " + ex));
+    }
+
+    @Override
+    public void stop() {
+        if (studentCache != null) {
+            System.out.println(studentCache.getStats());
+        }
+        if (studentFiles != null) {
+            studentFiles.close();
+        }
+        if (fileTransfer != null) {
+            fileTransfer.close();
+        }
+        if (background != null) {
+            background.close();
+        }
+        if (writeQueue != null) {
+            writeQueue.close();
+        }
+        if (changeJournal != null) {
+            changeJournal.close();
+        }
+        if (database != null) {
+            database.close();
         }
     }
 
-    private void refreshDatabase(Student student) {
-        try {
-            Class.forName("org.sqlite.JDBC");
-            try {
-                Connection conn
-                        = DriverManager.getConnection("jdbc:sqlite:" + dbName
-                                + ".db");
-                PreparedStatement prep = conn.prepareStatement("insert into"
-                        + " students values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, "
-                        + "?, ?, ?, ?);");
-                prep.setString(1, student.getFullName());
-                prep.setString(2, student.getFirstName());
-                prep.setString(3, student.getLastName());
-                prep.setString(4, student.getStartInd());
-                prep.setString(5, student.getEndInd());
-                prep.setString(6, student.getStartGroup());
-                prep.setString(7, student.getEndGroup());
-                prep.setString(8, student.getStartCheckIn());
-                prep.setString(9, student.getEndCheckIn());
-                prep.setString(10, student.getWalkIns());
-                prep.setString(11, student.getForms());
-                prep.setString(12, student.getNotes());
-                prep.setString(13, String.valueOf(student.getIEP()));
-                prep.setString(14, String.valueOf(student.get504()));
-                prep.setString(15, String.valueOf(student.getEval()));
-                System.out.println("Added all fields to database!");
-                prep.addBatch();
-                conn.setAutoCommit(false);
-                prep.executeBatch();
-                conn.setAutoCommit(true);
-                conn.close();
-            } catch (SQLException sql) {
-                System.err.println("Could not connect to database for access.");
+    public static void main(String[] args) {
+        launch(args);
+    }
 
-            }
-        } catch (ClassNotFoundException cnf) {
-            System.err.println("Could not find class org.sqlite.JDBC");
+    private void checkDatabase() throws SQLException, IOException {
+        //Opens the database under Resources and brings its schema up to date.
+        //Fails if the database or attachment store cannot be opened.
+        Path dbPath = Paths.get(resourcePath, dbName + ".db");
+        Migrations.importLegacy(dbPath, Paths.get(userPath, dbName + ".db"));
+        database = new Database(dbPath.toString());
+        int version = Migrations.migrate(database);
+        System.out.println("Database schema version " + version);
+        attachmentStore = new AttachmentStore(database, Paths.get(
+                resourcePath, "Attachments"));
+        writeQueue = new WriteQueue(database, 2000, 50);
+        studentStore = new StudentStore(database);
+        studentSearch = new StudentSearch(database);
+        archive = new Archive(database);
+        studentCache = new StudentCache(studentStore, 50000);
+        try {
+            changeJournal = new ChangeJournal(Paths.get(resourcePath,
+                    "changes.journal"), CHANGE_SYNC_MILLIS,
+                    CHANGE_SYNC_ENTRIES);
+            //Save changes that were journaled but not written before a crash.
+            changeJournal.replay(writeQueue.getCheckpoint(), change
+                    -> writeQueue.enqueue(change.getStudentId(),
+                            change.getCategory(), change.getNewValue(),
+                            change.getSeq()));
+            writeQueue.setJournal(changeJournal);
+            writeQueue.flush();
+        } catch (IOException | SQLException ex) {
+            System.err.println("Could not replay change journal: " + ex);
         }
     }
 
-    private void accessDatabase(Student student) {
-        try {
-            Class.forName("org.sqlite.JDBC");
+    //old is the column's value, from Student.getColumn, before the change.
+    private void modifyDatabase(Category cat, Student student, Object old) {
+        Object val = student.getColumn(cat);
+        //Journal the change first, so a crash before the write keeps it.
+        long seq = 0;
+        if (changeJournal != null) {
             try {
-                Connection conn
-                        = DriverManager.getConnection("jdbc:sqlite:" + dbName
-                                + ".db");
-                try {
-                    Statement stat = conn.createStatement();
-                    System.out.println("created statement");
-                    ResultSet rs = stat.executeQuery("select * from students where "
-                            + "fullName = '" + student.getFullName() + "';");
-                    System.out.println("Got result set");
-                    System.out.println("Found student, getting data...");
-                    student.setStartInd(rs.getString("indStart"));
-                    System.out.println(student.getStartInd());
-                    student.setEndInd(rs.getString("indEnd"));
-                    System.out.println(student.getEndInd());
-                    student.setStartGroup(rs.getString("groupStart"));
-                    System.out.println(student.getStartGroup());
-                    student.setEndGroup(rs.getString("groupEnd"));
-                    System.out.println(student.getEndGroup());
-                    student.setStartCheckIn(rs.getString("checkInStart"));
-                    System.out.println(student.getStartCheckIn());
-                    student.setEndCheckIn(rs.getString("checkInEnd"));
-                    System.out.println(student.getEndCheckIn());
-                    student.setWalkIns(rs.getString("walkIns"));
-                    System.out.println(student.getWalkIns());
-                    student.setForms(rs.getString("forms"));
-                    System.out.println(student.getForms());
-                    student.setNotes(rs.getString("notes"));
-                    student.setIEP(Boolean.valueOf(rs.getString("hasIEP")));
-                    student.set504(Boolean.valueOf(rs.getString("has504")));
-                    student.setEval(Boolean.valueOf(rs.getString("hasEval")));
-                    rs.close();
-                } catch (SQLException sql) {
-                    System.out.println("Couldn't find student, adding to "
-                            + "database...");
-                    PreparedStatement prep = conn.prepareStatement("insert into"
-                            + " students values (?, ?, ?, ?, ?, ?, ?, ?, ?, "
-                            + "?, ?, ?, ?, ?, ?);");
-                    System.out.println("Prepared a statement!");
-                    prep.setString(1, student.getFullName());
-                    System.out.println("Setting fullName to "
-                            + student.getFullName());
-                    prep.setString(2, student.getFirstName());
-                    System.out.println("Setting firstName to "
-                            + student.getFirstName());
-                    prep.setString(3, student.getLastName());
-                    System.out.println("Setting kastName to "
-                            + student.getLastName());
-                    prep.setString(4, student.getStartInd());
-                    System.out.println("Setting startInd to "
-                            + student.getStartInd());
-                    prep.setString(5, student.getEndInd());
-                    System.out.println("Setting endInd to "
-                            + student.getEndInd());
-                    prep.setString(6, student.getStartGroup());
-                    System.out.println("Setting startGroup to "
-                            + student.getStartGroup());
-                    prep.setString(7, student.getEndGroup());
-                    prep.setString(8, student.getStartCheckIn());
-                    prep.setString(9, student.getEndCheckIn());
-                    prep.setString(10, student.getWalkIns());
-                    System.out.println("Setting walkIns to "
-                            + student.getWalkIns());
-                    prep.setString(11, student.getForms());
-                    prep.setString(12, String.valueOf(student.getIEP()));
-                    prep.setString(13, String.valueOf(student.get504()));
-                    prep.setString(14, String.valueOf(student.getEval()));
-                    prep.addBatch();
-                    conn.setAutoCommit(false);
-                    prep.executeBatch();
-                    conn.setAutoCommit(true);
-                }
-                conn.close();
-            } catch (SQLException sql) {
-                System.err.println("Could not connect to database for access.");
+                seq = changeJournal.append(student.getId(), cat, old, val);
+            } catch (IOException io) {
+                System.err.println("Could not journal " + cat + ": " + io);
             }
+        }
+        writeQueue.enqueue(student.getId(), cat, val, seq);
+        caseloadIndex.update(student);
+        caseloadReport.update(student);
+    }
+
+    private static Map<Category, Object> serviceDates(Student student) {
+        Map<Category, Object> values = new EnumMap<>(Category.class);
+        for (Category cat : SERVICE_DATES) {
+            values.put(cat, student.getColumn(cat));
+        }
+        return values;
+    }
 
-        } catch (ClassNotFoundException cnf) {
-            System.err.println("Could not find class org.sqlite.JDBC");
+    private void refreshDatabase(Student student,
+            Map<Category, Object> before) {
+        for (Category cat : SERVICE_DATES) {
+            modifyDatabase(cat, student, before.get(cat));
         }
     }
 
-    private ListView<String> createVisibleStudentList(List<String> studentList,
-            TextField studentField, Stage primaryStage) {
+    private Student accessDatabase(String fullName) throws SQLException {
+        //Only called on a cache miss, so make sure queued edits are stored.
+        writeQueue.flush();
+        Student loaded = studentCache.load(fullName);
+        caseloadIndex.update(loaded);
+        caseloadReport.update(loaded);
+        return loaded;
+    }
+
+    private ListView<String> createVisibleStudentList(TextField studentField,
+            TextField caseloadField, Stage primaryStage) {
         //Creates visible list for GUI
 
-        //Create internal ObservableList based on studentList.
-        ObservableList<String> observableStudentList
-                = FXCollections.observableList(studentList);
         //Initialize uneditable list visible in GUI.
         ListView<String> visibleStudentList = new ListView<>();
         visibleStudentList.setEditable(false);
-        FilteredList<String> filteredItems = new FilteredList<String>(
-                observableStudentList, p -> true);
-        //Enable filtering of visibleStudentList based on entry in TextField studentField
+        visibleStudentList.setItems(studentList);
+        //Filter visibleStudentList through the name index once typing in
+        //studentField pauses.
+        ObservableList<String> matches = FXCollections.observableArrayList();
+        PauseTransition typing = new PauseTransition(Duration.millis(150));
+        refreshVisibleList = () -> filterStudentList(visibleStudentList,
+                matches, studentField.getText());
+        typing.setOnFinished(event -> refreshVisibleList.run());
         studentField.textProperty().addListener((obs, oldVal, newVal) -> {
-            Platform.runLater(() -> {
-                filteredItems.setPredicate(boxListItem -> {
-                    if (boxListItem.toUpperCase().startsWith(newVal.
-                            toUpperCase())) {
-                        return true;
-                    } else {
-                        return false;
-                    }
-                });
+            typing.playFromStart();
+        });
+        //Narrow the list to a caseload filter when Enter is pressed.
+        caseloadField.setOnAction(event -> {
+            String text = caseloadField.getText();
+            try {
+                caseloadFilter = text.trim().isEmpty() ? null
+                        : CaseloadIndex.parse(text);
+                refreshVisibleList.run();
+            } catch (ParseException pe) {
+                Alert badFilter = new Alert(Alert.AlertType.WARNING,
+                        pe.getMessage() + ". Combine iep, 504, eval, "
+                        + "individual, group and checkin with and, or, not "
+                        + "and parentheses.");
+                badFilter.showAndWait();
+            }
+        });
+        //Rebuild the index in the background when the student list changes.
+        studentList.addListener((ListChangeListener<String>) change -> {
+            List<String> snapshot = new ArrayList<>(studentList);
+            indexedList = snapshot;
+            nameIndex = null;
+            background.submit(() -> new NameIndex(snapshot), index -> {
+                if (indexedList == snapshot) {
+                    nameIndex = index;
+                    refreshVisibleList.run();
+                }
             });
         });
-        //As filteredItems updates, visibleStudentList does also.
-        visibleStudentList.setItems(filteredItems);
         //Initiate certificate creation process upon click on list item.
         visibleStudentList.setOnMouseClicked((MouseEvent event) -> {
             if (event.getClickCount() == 2 && !event.isConsumed()) {
                 String selectedStudent = visibleStudentList.getSelectionModel()
-                        .getSelectedItem().trim();
+                        .getSelectedItem();
                 if (selectedStudent != null) {
-                    Student student = new Student(selectedStudent);
-                    File target = new File(studentFilesPath + File.separator
-                            + student.getFullName());
-                    target.mkdir();
-                    accessDatabase(student);
-                    initStudentStage(student, primaryStage);
+                    openStudent(selectedStudent.trim(), visibleStudentList,
+                            primaryStage);
                 }
             }
         });
         return visibleStudentList;
     }
 
+    private void openStudent(String selectedStudent, Node clicked,
+            Stage primaryStage) {
+        //Opens the student window, loading the student first on a cache miss.
+
+        Student cached = studentCache.lookup(selectedStudent);
+        if (cached != null) {
+            background.submit(() -> new File(studentFilesPath
+                    + File.separator + selectedStudent).mkdir());
+            initStudentStage(cached, primaryStage);
+        } else {
+            clicked.setDisable(true);
+            background.submit(() -> {
+                File target = new File(studentFilesPath
+                        + File.separator + selectedStudent);
+                target.mkdir();
+                return accessDatabase(selectedStudent);
+            }, loaded -> {
+                clicked.setDisable(false);
+                initStudentStage(loaded, primaryStage);
+            }, ex -> {
+                clicked.setDisable(false);
+                System.err.println("Could not open " + selectedStudent
+                        + ": " + ex);
+            });
+        }
+    }
+
+    private void filterStudentList(ListView<String> visibleStudentList,
+            ObservableList<String> matches, String query) {
+        //Shows the students with a name starting with query who match the
+        //caseload filter.
+
+        boolean anyName = query == null || query.trim().isEmpty();
+        if (anyName && caseloadFilter == null) {
+            visibleStudentList.setItems(studentList);
+            return;
+        }
+        if (!anyName && nameIndex == null) {
+            //Filtered again once the index has been built.
+            return;
+        }
+        List<String> shown = anyName ? studentList : nameIndex.matches(query);
+        if (caseloadFilter != null) {
+            Set<String> caseload = new HashSet<>(caseloadIndex.names(
+                    caseloadFilter));
+            List<String> inCaseload = new ArrayList<>();
+            for (String name : shown) {
+                if (caseload.contains(name)) {
+                    inCaseload.add(name);
+                }
+            }
+            shown = inCaseload;
+        }
+        matches.setAll(shown);
+        visibleStudentList.setItems(matches);
+    }
+
     private void initStudentStage(Student student, Stage primaryStage) {
         String studentName = student.getFullName();
         Stage studentStage = new Stage();
@@ -419,10 +475,10 @@ public class StudentTracker extends Application {
             System.out.println("indBox clicked! values for text choice:");
             System.out.println(student.getStartInd());
             System.out.println(student.getEndInd());
-            if (student.getStartInd() == null && student.getEndInd() == null) {
+            if (student.getStartInd() == Dates.UNSET && student.getEndInd() == Dates.UNSET) {
                 System.out.println("Going with setting start date");
                 addBoxFunction(indBox, student, Category.indStart);
-            } else if (student.getEndInd() == null) {
+            } else if (student.getEndInd() == Dates.UNSET) {
                 System.out.println("Going with setting end date");
                 addBoxFunction(indBox, student, Category.indEnd);
             } else {
@@ -434,10 +490,10 @@ public class StudentTracker extends Application {
         groupBox.setId("groupB");
         setCheck(groupBox, student);
         groupBox.setOnMouseClicked((MouseEvent a) -> {
-            if (student.getStartGroup() == null
-                    && student.getEndGroup() == null) {
+            if (student.getStartGroup() == Dates.UNSET
+                    && student.getEndGroup() == Dates.UNSET) {
                 addBoxFunction(groupBox, student, Category.groupStart);
-            } else if (student.getEndGroup() == null) {
+            } else if (student.getEndGroup() == Dates.UNSET) {
                 addBoxFunction(groupBox, student, Category.groupEnd);
             } else {
                 groupBox.setIndeterminate(true);
@@ -447,10 +503,10 @@ public class StudentTracker extends Application {
         checkInBox.setId("checkInB");
         setCheck(checkInBox, student);
         checkInBox.setOnMouseClicked((MouseEvent a) -> {
-            if (student.getStartCheckIn() == null
-                    && student.getEndCheckIn() == null) {
+            if (student.getStartCheckIn() == Dates.UNSET
+                    && student.getEndCheckIn() == Dates.UNSET) {
                 addBoxFunction(checkInBox, student, Category.checkInStart);
-            } else if (student.getEndCheckIn() == null) {
+            } else if (student.getEndCheckIn() == Dates.UNSET) {
                 addBoxFunction(checkInBox, student, Category.checkInEnd);
             } else {
                 checkInBox.setIndeterminate(true);
@@ -462,7 +518,9 @@ public class StudentTracker extends Application {
         modDate.setOnMouseClicked((MouseEvent event) -> {
             modifyStudentDialog(student, indBox, groupBox, checkInBox);
         });
-        Button addWalkInButton = createAddWalkInButton(student);
+        Label walkInText = new Label();
+        showWalkIns(walkInText, student);
+        Button addWalkInButton = createAddWalkInButton(student, walkInText);
 
         Button detailsButton = createDetailsButton(student, studentStage);
 
@@ -472,7 +530,7 @@ public class StudentTracker extends Application {
         buttons.setId("buttonBox");
         buttons.getChildren().addAll(addWalkInButton, detailsButton);
         studentBox.getChildren().addAll(title, indBox, groupBox, checkInBox,
-                modDate);
+                modDate, walkInText);
         VBox contentBox = new VBox();
         contentBox.setId("buttonBox");
         contentBox.getChildren().addAll(studentBox, buttons);
@@ -480,6 +538,10 @@ public class StudentTracker extends Application {
         studentScene.getStylesheets().add(StudentTracker.class.getResource(
                 "Main.css").toExternalForm());
         studentStage.setScene(studentScene);
+        studentStage.setOnHidden(event -> {
+            writeQueue.flushSoon();
+            refreshVisibleList.run();
+        });
         studentStage.show();
     }
 
@@ -504,8 +566,9 @@ public class StudentTracker extends Application {
             IEPBox.setSelected(true);
         }
         IEPBox.setOnAction((ActionEvent event) -> {
+            Object old = student.getColumn(Category.hasIEP);
             student.toggleIEP();
-            modifyDatabase(Category.hasIEP, student);
+            modifyDatabase(Category.hasIEP, student, old);
             IEPBox.setSelected(student.getIEP());
         });
         CheckBox ffBox = new CheckBox("504");
@@ -513,52 +576,60 @@ public class StudentTracker extends Application {
             ffBox.setSelected(true);
         }
         ffBox.setOnAction((ActionEvent event) -> {
+            Object old = student.getColumn(Category.has504);
             student.toggle504();
-            modifyDatabase(Category.has504, student);
-            ffBox.setSelected(student.getIEP());
+            modifyDatabase(Category.has504, student, old);
+            ffBox.setSelected(student.get504());
         });
         CheckBox evalBox = new CheckBox("Eval in process");
         if (student.getEval()) {
             evalBox.setSelected(true);
         }
         evalBox.setOnAction((ActionEvent event) -> {
+            Object old = student.getColumn(Category.hasEval);
             student.toggleEval();
-            modifyDatabase(Category.hasEval, student);
+            modifyDatabase(Category.hasEval, student, old);
             evalBox.setSelected(student.getEval());
         });
         Label formText = new Label("Forms:");
+        //Pick up files dropped into the student's folder.
+        Object oldForms = student.getColumn(Category.forms);
+        if (studentFiles.reconcile(student)) {
+            modifyDatabase(Category.forms, student, oldForms);
+        }
         ListView<String> visibleFormList = new ListView<>();
         visibleFormList.setEditable(false);
         visibleFormList.setMaxSize(280, 120);
-        List forms = new ArrayList<>();
-        if (!student.getForms().isEmpty()) {
-            forms.add(student.getForms().split(";"));
-        }
-        
-        visibleFormList.setItems(FXCollections.observableList(forms));
+        ObservableList<String> forms = FXCollections.observableArrayList(
+                student.getFormNames());
+        visibleFormList.setItems(forms);
         visibleFormList.setOnMouseClicked((MouseEvent event) -> {
             if (event.getClickCount() == 2 && !event.isConsumed()) {
 
-                try {
-                    if (Desktop.isDesktopSupported()) {
-                        String fileName = visibleFormList.getSelectionModel()
-                                .getSelectedItem();
-                        if (fileName != null) {
-                            Desktop.getDesktop().open(new File(studentFilesPath
-                                    + File.separator + student.getFullName()
-                                    + File.separator + fileName));
-                        }
-                    }
-                } catch (IOException io) {
+                String fileName = visibleFormList.getSelectionModel()
+                        .getSelectedItem();
+                if (fileName != null && Desktop.isDesktopSupported()) {
+                    Form form = student.getForm(fileName);
+                    background.submit(() -> {
+                        //Open a copy of a shared file, never the original.
+                        Path copy = form == null ? null
+                                : attachmentStore.checkout(form);
+                        Desktop.getDesktop().open(copy != null ? copy.toFile()
+                                : new File(studentFilesPath + File.separator
+                                        + student.getFullName()
+                                        + File.separator + fileName));
+                        return null;
+                    }, opened -> {
+                    }, ex -> System.err.println("Could not open form "
+                            + fileName + ": " + ex));
                 }
             }
         });
 
-        Button addFormButton = initAddFormButton(student, detailsStage, forms,
-                visibleFormList);
+        Button addFormButton = initAddFormButton(student, detailsStage, forms);
 
-        Button removeFormButton = initRemoveFormButton(student, detailsStage,
-                forms, visibleFormList);
+        Button removeFormButton = initRemoveFormButton(student, forms,
+                visibleFormList);
 
         HBox formButtons = new HBox();
         formButtons.setId("buttonBox");
@@ -574,8 +645,9 @@ public class StudentTracker extends Application {
         okButton.setGraphic(new ImageView(okImage));
         okButton.setId("okButton");
         okButton.setOnAction((ActionEvent event) -> {
+            Object old = student.getColumn(Category.notes);
             student.setNotes(noteArea.getText());
-            modifyDatabase(Category.notes, student);
+            modifyDatabase(Category.notes, student, old);
             detailsStage.close();
         });
         VBox noteLayout = new VBox();
@@ -592,11 +664,15 @@ public class StudentTracker extends Application {
         detailsScene.getStylesheets().add(StudentTracker.class.getResource(
                 "Main.css").toExternalForm());
         detailsStage.setScene(detailsScene);
+        detailsStage.setOnHidden(event -> {
+            writeQueue.flushSoon();
+            refreshVisibleList.run();
+        });
         detailsStage.show();
     }
 
     private Button initAddFormButton(Student student, Stage parentStage,
-            List forms, ListView visibleList) {
+            ObservableList<String> forms) {
         Button addFormButton = new Button();
         Image addFormImage = new Image(getClass().getResourceAsStream(
                 "AddFormButton.png"), 110, 66, true, true);
@@ -605,57 +681,82 @@ public class StudentTracker extends Application {
             String studentPath = studentFilesPath + File.separator
                     + student.getFullName();
             FileChooser chooseList = new FileChooser();
-            chooseList.setInitialDirectory(new File(studentPath));
+            chooseList.setInitialDirectory(new File(studentFiles.hasFolder(
+                    student.getFullName()) ? studentPath : studentFilesPath));
             chooseList.setTitle("Select Form File");
             File formFile = chooseList.showOpenDialog(parentStage);
             if (formFile != null) {
                 String fileName = formFile.getName();
-                try {
-                    copy(formFile, new File(studentPath + File.separator
-                            + fileName));
-                    student.addForms(fileName);
-                    forms.add(fileName);
-                    modifyDatabase(Category.forms, student);
-                    visibleList.setItems(FXCollections.observableList(forms));
-                } catch (IllegalArgumentException ia) {
+                if (!student.hasForm(fileName) || confirmReplaceForm()) {
+                    addFormButton.setDisable(true);
+                    transfer("Copying " + fileName, parentStage, progress
+                            -> attachmentStore.store(formFile, progress),
+                            form -> {
+                        addFormButton.setDisable(false);
+                        if (!student.hasForm(form.getFileName())) {
+                            forms.add(form.getFileName());
+                        }
+                        Object old = student.getColumn(Category.forms);
+                        student.addForm(form);
+                        modifyDatabase(Category.forms, student, old);
+                    }, ex -> {
+                        addFormButton.setDisable(false);
+                        System.err.println("Could not store form " + fileName
+                                + ": " + ex);
+                    }, () -> addFormButton.setDisable(false));
                 }
             }
         });
         return addFormButton;
     }
 
-    private Button initRemoveFormButton(Student student, Stage parentStage,
-            List forms, ListView visibleList) {
+    private Button initRemoveFormButton(Student student,
+            ObservableList<String> forms, ListView<String> visibleList) {
         Button removeFormButton = new Button();
         Image removeFormImage = new Image(getClass().getResourceAsStream(
                 "RemoveFormButton.png"), 110, 66, true, true);
         removeFormButton.setGraphic(new ImageView(removeFormImage));
         removeFormButton.setOnAction((ActionEvent event) -> {
             if (!forms.isEmpty()) {
-                String fileName = (String) visibleList.getSelectionModel()
+                String fileName = visibleList.getSelectionModel()
                         .getSelectedItem();
                 if (fileName != null) {
-                    File removeFile = new File(studentFilesPath + File.separator
-                            + student.getFullName() + File.separator + fileName);
-                    removeFile.delete();
+                    Object old = student.getColumn(Category.forms);
                     forms.remove(fileName);
                     student.removeForm(fileName);
-                    modifyDatabase(Category.forms, student);
-                    visibleList.setItems(FXCollections.observableList(forms));
+                    modifyDatabase(Category.forms, student, old);
+                    boolean inFolder = studentFiles.contains(
+                            student.getFullName(), fileName);
+                    background.submit(() -> {
+                        if (inFolder) {
+                            //Otherwise the folder would bring it back.
+                            new File(studentFilesPath + File.separator
+                                    + student.getFullName() + File.separator
+                                    + fileName).delete();
+                        }
+                        //Save the release, then drop files nobody uses.
+                        writeQueue.flush();
+                        return attachmentStore.collect(
+                                AttachmentStore.GRACE_MILLIS);
+                    });
                 }
             }
         });
         return removeFormButton;
     }
 
-    private Button createAddWalkInButton(Student student) {
+    private void showWalkIns(Label walkInText, Student student) {
+        walkInText.setText("Walk-ins: " + student.getWalkInCount() + " ("
+                + student.countWalkInsThisMonth() + " this month)");
+    }
+
+    private Button createAddWalkInButton(Student student, Label walkInText) {
         Button addWalkInButton = new Button();
         Image walkInImage = new Image(getClass().getResourceAsStream(
                 "AddWalkInButton.png"), 110, 66, true, true);
         addWalkInButton.setGraphic(new ImageView(walkInImage));
         addWalkInButton.setOnAction((final ActionEvent addWalkAct) -> {
-            String walkInDate = LocalDateTime.now().format(
-                    DateTimeFormatter.ofPattern("MM-dd-yyyy"));
+            String walkInDate = Dates.format(Dates.today());
             TextInputDialog addWalkInDialog = new TextInputDialog(walkInDate);
             addWalkInDialog.setContentText("Add this date to "
                     + student.getFullName() + "'s walk-ins?");
@@ -663,8 +764,15 @@ public class StudentTracker extends Application {
             if (walkInResult.isPresent()) {
                 String walkIn = walkInResult.get();
                 if (!walkIn.isEmpty()) {
-                    student.addWalkIn(walkIn);
-                    modifyDatabase(Category.walkIns, student);
+                    try {
+                        int day = parseDate(walkIn);
+                        Object old = student.getColumn(Category.walkIns);
+                        student.addWalkIn(day);
+                        modifyDatabase(Category.walkIns, student, old);
+                        showWalkIns(walkInText, student);
+                    } catch (DataFormatException df) {
+                        improperFormatAlert();
+                    }
                 }
 
             }
@@ -678,10 +786,10 @@ public class StudentTracker extends Application {
             case "indB":
                 System.out.println("indEnd = " + student.getEndInd());
                 System.out.println("indStart = " + student.getStartInd());
-                if (student.getEndInd() != null) {
+                if (student.getEndInd() != Dates.UNSET) {
                     box.setIndeterminate(true);
                     System.out.println("Setting box to indeterminate");
-                } else if (student.getStartInd() != null) {
+                } else if (student.getStartInd() != Dates.UNSET) {
                     System.out.println("startInd = " + student.getStartInd());
                     box.setIndeterminate(false);
                     box.setSelected(true);
@@ -693,18 +801,18 @@ public class StudentTracker extends Application {
                 }
                 break;
             case "groupB":
-                if (student.getEndGroup() != null) {
+                if (student.getEndGroup() != Dates.UNSET) {
                     box.setIndeterminate(true);
-                } else if (student.getStartGroup() != null) {
+                } else if (student.getStartGroup() != Dates.UNSET) {
                     box.setSelected(true);
                 } else {
                     box.setSelected(false);
                 }
                 break;
             case "checkInB":
-                if (student.getEndCheckIn() != null) {
+                if (student.getEndCheckIn() != Dates.UNSET) {
                     box.setIndeterminate(true);
-                } else if (student.getStartCheckIn() != null) {
+                } else if (student.getStartCheckIn() != Dates.UNSET) {
                     box.setSelected(true);
                 } else {
                     box.setSelected(false);
@@ -732,15 +840,12 @@ public class StudentTracker extends Application {
         TextField endGroupField = new TextField();
         TextField startCheckInField = new TextField();
         TextField endCheckInField = new TextField();
-        startIndField.setText(student.getStartInd());
-        System.out.println("student indStart date is " + student.getStartInd());
-        System.out.println("Setting startIndField's text to "
-                + startIndField.getText());
-        endIndField.setText(student.getEndInd());
-        startGroupField.setText(student.getStartGroup());
-        endGroupField.setText(student.getEndGroup());
-        startCheckInField.setText(student.getStartCheckIn());
-        endCheckInField.setText(student.getEndCheckIn());
+        startIndField.setText(Dates.format(student.getStartInd()));
+        endIndField.setText(Dates.format(student.getEndInd()));
+        startGroupField.setText(Dates.format(student.getStartGroup()));
+        endGroupField.setText(Dates.format(student.getEndGroup()));
+        startCheckInField.setText(Dates.format(student.getStartCheckIn()));
+        endCheckInField.setText(Dates.format(student.getEndCheckIn()));
         Stage modStudentStage = new Stage();
 
         Button okButton = new Button();
@@ -750,62 +855,20 @@ public class StudentTracker extends Application {
         okButton.setId("okButton");
         okButton.setOnAction((ActionEvent event) -> {
             try {
-                System.out.println("startIndField's text \""
-                        + startIndField.getText() + "\"");
-                checkFieldText(startIndField, student);
-                System.out.println("Setting startInd to "
-                        + student.getStartInd());
-                System.out.println("endIndField's text \""
-                        + endIndField.getText() + "\"");
-                checkFieldText(endIndField, student);
-                System.out.println("Setting endInd to "
-                        + student.getEndInd());
-                checkFieldText(startGroupField, student);
-                checkFieldText(endGroupField, student);
-                checkFieldText(startCheckInField, student);
-                checkFieldText(endCheckInField, student);
-
-                if (startIndField.getText() == null || startIndField.getText()
-                        .equals("")) {
-                    student.setStartInd(null);
-                } else {
-                    student.setStartInd(startIndField.getText());
-                }
-                if (endIndField.getText() == null || endIndField.getText()
-                        .equals("")) {
-                    student.setEndInd(null);
-                } else {
-                    student.setEndInd(endIndField.getText());
-                }
-
-                if (startGroupField.getText() == null || startGroupField
-                        .getText().equals("")) {
-                    student.setStartGroup(null);
-                } else {
-                    student.setStartGroup(startGroupField.getText());
-                }
-
-                if (endGroupField.getText() == null || endGroupField.getText()
-                        .equals("")) {
-                    student.setEndGroup(null);
-                } else {
-                    student.setEndGroup(endGroupField.getText());
-                }
-
-                if (startCheckInField.getText() == null || startCheckInField
-                        .getText().equals("")) {
-                    student.setStartCheckIn(null);
-                } else {
-                    student.setStartCheckIn(startCheckInField.getText());
-                }
-
-                if (endCheckInField.getText() == null || endCheckInField
-                        .getText().equals("")) {
-                    student.setEndCheckIn(null);
-                } else {
-                    student.setEndCheckIn(endCheckInField.getText());
-                }
-                refreshDatabase(student);
+                int startInd = checkFieldText(startIndField);
+                int endInd = checkFieldText(endIndField);
+                int startGroup = checkFieldText(startGroupField);
+                int endGroup = checkFieldText(endGroupField);
+                int startCheckIn = checkFieldText(startCheckInField);
+                int endCheckIn = checkFieldText(endCheckInField);
+                Map<Category, Object> before = serviceDates(student);
+                student.setStartInd(startInd);
+                student.setEndInd(endInd);
+                student.setStartGroup(startGroup);
+                student.setEndGroup(endGroup);
+                student.setStartCheckIn(startCheckIn);
+                student.setEndCheckIn(endCheckIn);
+                refreshDatabase(student, before);
                 modStudentStage.close();
             } catch (DataFormatException df) {
                 improperFormatAlert();
@@ -849,24 +912,33 @@ public class StudentTracker extends Application {
         scene.getStylesheets().add(getClass().getResource("Main.css")
                 .toExternalForm());
         modStudentStage.setScene(scene);
+        modStudentStage.setOnHidden(event -> {
+            writeQueue.flushSoon();
+            refreshVisibleList.run();
+        });
         modStudentStage.show();
 
     }
 
-    private void checkFieldText(TextField field, Student student)
-            throws DataFormatException {
+    private int checkFieldText(TextField field) throws DataFormatException {
+        //Returns the field's date as an epoch day, or UNSET if it is empty.
         if (field.getText() == null || field.getText().equals("")) {
-        } else if (Pattern.matches("[0-9][0-9]-[0-9][0-9]-[0-9][0-9][0-9][0-9]",
-                field.getText())) {
-        } else {
+            return Dates.UNSET;
+        }
+        return parseDate(field.getText());
+    }
+
+    private int parseDate(String text) throws DataFormatException {
+        try {
+            return Dates.parseEntered(text);
+        } catch (DateTimeParseException dtp) {
             throw new DataFormatException();
         }
     }
 
     private void addBoxFunction(CheckBox box, Student student, Category cat) {
 
-        String date = LocalDateTime.now().format(
-                DateTimeFormatter.ofPattern("MM-dd-yyyy"));
+        String date = Dates.format(Dates.today());
         TextInputDialog dialog = new TextInputDialog(date);
         Category catComp = null;
         String area;
@@ -909,12 +981,12 @@ public class StudentTracker extends Application {
         }
         Optional<String> result = dialog.showAndWait();
         if (result.isPresent()) {
-            String res = result.get();
-            if (Pattern.matches("[0-9][0-9]-[0-9][0-9]-[0-9][0-9][0-9][0-9]",
-                    res)) {
-                modifyStudent(cat, student, res);
-                modifyDatabase(cat, student);
-            } else {
+            try {
+                int day = parseDate(result.get());
+                Object old = student.getColumn(cat);
+                modifyStudent(cat, student, day);
+                modifyDatabase(cat, student, old);
+            } catch (DataFormatException df) {
                 improperFormatAlert();
                 System.out.println("Unselecting box");
             }
@@ -925,34 +997,32 @@ public class StudentTracker extends Application {
     }
 
     private boolean checkStudentData(Category cat, Student student) {
-        String check = null;
+        int day = Dates.UNSET;
         boolean val = false;
         switch (cat.toString()) {
             case "indStart":
-                check = student.getStartInd();
+                day = student.getStartInd();
                 break;
             case "indEnd":
-                check = student.getEndInd();
+                day = student.getEndInd();
                 break;
             case "groupStart":
-                check = student.getStartGroup();
+                day = student.getStartGroup();
                 break;
             case "groupEnd":
-                check = student.getEndGroup();
+                day = student.getEndGroup();
                 break;
             case "checkInStart":
-                check = student.getStartCheckIn();
+                day = student.getStartCheckIn();
                 break;
             case "checkInEnd":
-                check = student.getEndCheckIn();
+                day = student.getEndCheckIn();
                 break;
             case "walkIns":
-                if (!student.getWalkIns().equals("")) {
-                    check = student.getWalkIns();
-                }
+                val = student.getWalkInCount() > 0;
                 break;
             case "forms":
-                check = student.getForms();
+                val = student.getFormCount() > 0;
                 break;
             case "hasIEP":
                 val = student.getIEP();
@@ -963,13 +1033,13 @@ public class StudentTracker extends Application {
             case "hasEval":
                 val = student.getEval();
         }
-        if (check != null) {
+        if (day != Dates.UNSET) {
             val = true;
         }
         return val;
     }
 
-    private void modifyStudent(Category cat, Student student, String date) {
+    private void modifyStudent(Category cat, Student student, int date) {
         switch (cat.toString()) {
             case "indStart":
                 System.out.println("indStart is being modified to " + date);
@@ -994,9 +1064,6 @@ public class StudentTracker extends Application {
             case "walkIns":
                 student.addWalkIn(date);
                 break;
-            case "forms":
-                student.setForms(date);
-                break;
         }
     }
 
@@ -1011,6 +1078,18 @@ public class StudentTracker extends Application {
         impFormatAlert.showAndWait();
     }
 
+    private HBox createBusyIndicator() {
+        //Shows that database or file work is still running in the background.
+        ProgressIndicator progress = new ProgressIndicator();
+        progress.setMaxSize(20, 20);
+        Label busyText = new Label("Working...");
+        HBox busyBox = new HBox(progress, busyText);
+        busyBox.setId("busyBox");
+        busyBox.visibleProperty().bind(background.pendingProperty()
+                .greaterThan(0));
+        return busyBox;
+    }
+
     private Label createStatusText(StringProperty inputTxt) {
         //Creates and binds TextProperties for GUI status messages.
         Label statusText = new Label();
@@ -1019,8 +1098,8 @@ public class StudentTracker extends Application {
         return statusText;
     }
 
-    private void initAddStudentStage(String stdntLstPath,
-            Properties properties, Stage primaryStage) {
+    private void initAddStudentStage(Properties properties,
+            Stage primaryStage) {
         Stage addStudentStage = new Stage();
         addStudentStage.setTitle("Add Student");
         addStudentStage.initOwner(primaryStage);
@@ -1051,23 +1130,16 @@ public class StudentTracker extends Application {
                     name[1] += " " + name[2];
                 }
                 String[] formattedName = {name[1], name[0]};
-                String[] fileName = new File(stdntLstPath).getName().split(" ");
-                System.out.println("We split the filename to find out if a "
-                        + "modified list exists.");
-                System.out.println("File name is " + fileName);
-                if (fileName[0].equals("Modified")) {
-                    System.out.println("Modified key word recognized.");
-                    modifyStudentList(formattedName, stdntLstPath, "add");
-                    System.out.println("Trying to reset visible list.");
-                    resetVisibleList(properties, stdntLstPath);
-                } else {
-                    System.out.println("Modified variable not found, adding.");
-                    String modListPath = resourcePath + File.separator
-                            + "Modified " + new File(stdntLstPath).getName();
-                    modifyStudentList(formattedName, modListPath, "add");
-                    System.out.println("Trying to reset visible list.");
-                    resetVisibleList(properties, modListPath);
-                }
+                String listPath = modifiedListPath();
+                okButton.setDisable(true);
+                background.submit(() -> modifyStudentList(formattedName,
+                        listPath, "add"), names -> {
+                    updateStudentList(properties, listPath, names);
+                    addStudentStage.close();
+                }, ex -> {
+                    okButton.setDisable(false);
+                    System.err.println("Could not add student: " + ex);
+                });
             }
         });
         HBox buttons = new HBox();
@@ -1085,85 +1157,142 @@ public class StudentTracker extends Application {
         addStudentStage.show();
     }
 
-    private void modifyStudentList(String[] name, String listPath, String op) {
-
-        List<String> writeList = new ArrayList<>();
-        if (op.equals("add")) {
-            backgroundList.add(name);
-        }
-        for (int i = 0; i < backgroundList.size(); i++) {
-            writeList.add(backgroundList.get(i)[0] + " \t"
-                    + backgroundList.get(i)[1]);
-        }
-        if (op.equals("rem")) {
-
-            String remName = name[0].trim() + " \t" + name[1].trim();
-            Boolean check = writeList.remove(remName);
-            System.out.println("we're removing a name!" + check);
-        } else {
-            Collections.sort(writeList);
+    private List<String> modifyStudentList(String[] name, String listPath,
+            String op) throws IOException {
+        //Journals the change instead of rewriting the list file, and returns
+        //the names now on the list. Blocks, so run it on a background thread.
+
+        Path path = Paths.get(listPath);
+        synchronized (rosterLock) {
+            if (roster == null) {
+                //Never start an empty list over one that holds students.
+                roster = Files.exists(path) ? readStudentList(listPath,
+                        new ArrayList<>()) : new Roster(path);
+            } else if (!roster.getPath().equals(path)) {
+                //First change to an unmodified list, write the modified copy.
+                roster.saveAs(path);
+            }
+            boolean changed = op.equals("add") ? roster.add(name[0], name[1])
+                    : roster.remove(name[0], name[1]);
+            System.out.println("Student list " + op + " " + name[1] + " "
+                    + name[0] + ": " + changed);
+            if (roster.getJournalSize() >= ROSTER_JOURNAL_LIMIT) {
+                roster.compact();
+            }
+            return roster.fullNames();
         }
+    }
 
-        try {
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
-                    new FileOutputStream(listPath)));
-            writer.write("Last Name \tFirst Name");
-            for (int i = 0; i < writeList.size(); i++) {
-                writer.newLine();
-                writer.write(writeList.get(i));
+    private void loadStudentList(Properties properties, String listPath,
+            Runnable onFinished) {
+        //Reads the student list in the background and swaps it in.
 
+        List<RosterReader.Problem> problems = new ArrayList<>();
+        background.submit(() -> {
+            Roster loaded = readStudentList(listPath, problems);
+            synchronized (rosterLock) {
+                roster = loaded;
+                return loaded.fullNames();
             }
-            writer.flush();
-            writer.close();
-
-        } catch (FileNotFoundException ex) {
-
-        } catch (IOException io) {
+        }, names -> {
+            updateStudentList(properties, listPath, names);
+            onFinished.run();
+            if (!problems.isEmpty()) {
+                rosterProblemsAlert(problems);
+            }
+        }, ex -> {
+            onFinished.run();
+            System.err.println("Could not read student list " + listPath
+                    + ": " + ex);
+            Alert studentListNotFound = new Alert(Alert.AlertType.WARNING,
+                    "Specified student list could not be read. "
+                    + "Please choose a different list.");
+            studentListNotFound.showAndWait();
+        });
+    }
 
+    private Roster readStudentList(String listPath,
+            List<RosterReader.Problem> problems) throws IOException {
+        //Extracts student list from text file. Blocks, so run it on a
+        //background thread.
+
+        Roster loaded = new Roster(Paths.get(listPath));
+        RosterImport rosterImport = new RosterImport(studentStore, 1000,
+                loaded::load);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(listPath)))) {
+            problems.addAll(new RosterReader().read(reader, rosterImport));
+            rosterImport.finish();
         }
+        System.out.println("Read " + rosterImport.getRows()
+                + " students, added " + rosterImport.getAdded()
+                + " to the database");
+        int journaled = loaded.replayJournal();
+        if (journaled > 0) {
+            System.out.println("Applied " + journaled
+                    + " journaled student list changes");
+        }
+        return loaded;
     }
 
-    private void extractStudentList(List<String> studentList,
-            String stdntLstPath) {
-        //extracts student list from text file.
+    private void updateStudentList(Properties properties, String listPath,
+            List<String> names) {
+        //Applies the difference between the shown list and names so the
+        //visible list keeps its filter, scroll position and selection.
 
-        try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(
-                    new FileInputStream(stdntLstPath)));
-            String[] colNames = reader.readLine().split("\\t");
-            int firstNameInd = 0;
-            int lastNameInd = 0;
-            for (int i = 0; i < colNames.length; i++) {
-                if (colNames[i].matches("First Name")) {
-                    firstNameInd = i;
-                } else if (colNames[i].matches("Last Name")) {
-                    lastNameInd = i;
-                }
+        if (!listPath.equals(studentListPath)) {
+            setStudentListPath(properties, listPath);
+        }
+        Set<String> keep = new HashSet<>(names);
+        List<String> dropped = new ArrayList<>();
+        for (String name : studentList) {
+            if (!keep.contains(name)) {
+                dropped.add(name);
             }
-            String str;
-            int lines = 0;
-            while ((str = reader.readLine()) != null) {
-                String[] array = str.split("\\t");
-                String[] backgroundName = {array[lastNameInd].trim(),
-                    array[firstNameInd].trim()};
-                backgroundList.add(backgroundName);
-                studentList.add(array[firstNameInd].trim() + " "
-                        + array[lastNameInd].trim());
+        }
+        if (!dropped.isEmpty()) {
+            studentList.removeAll(dropped);
+        }
+        int added = names.size() - studentList.size();
+        if (added > 100) {
+            studentList.setAll(names);
+        } else if (added > 0) {
+            for (int i = 0; i < names.size(); i++) {
+                if (i >= studentList.size()
+                        || !studentList.get(i).equals(names.get(i))) {
+                    studentList.add(i, names.get(i));
+                }
             }
-            reader.close();
-        } catch (IOException io) {
-            System.err.println("I/O Exception in method extractStudentList: "
-                    + io);
-            Alert studentListNotFound = new Alert(Alert.AlertType.WARNING,
-                    "Specified student list was not found. "
-                    + "Please choose a different list.");
-            studentListNotFound.showAndWait();
-        } catch (NullPointerException npe) {
-            Alert templateNotFound = new Alert(Alert.AlertType.WARNING,
-                    "Specified student list was not found. "
-                    + "Please choose a different list.");
-            templateNotFound.showAndWait();
         }
+        if (!studentList.equals(names)) {
+            //Lists from different files need not share an order.
+            studentList.setAll(names);
+        }
+    }
+
+    private String modifiedListPath() {
+        //Changes are written to a "Modified" copy of the chosen list.
+
+        String listName = new File(studentListPath).getName();
+        if (listName.split(" ")[0].equals("Modified")) {
+            return studentListPath;
+        }
+        return resourcePath + File.separator + "Modified " + listName;
+    }
+
+    private void rosterProblemsAlert(List<RosterReader.Problem> problems) {
+        StringBuilder message = new StringBuilder();
+        message.append(problems.size()).append(" rows of the student list "
+                + "were skipped:");
+        for (int i = 0; i < problems.size() && i < 10; i++) {
+            message.append("\n").append(problems.get(i));
+        }
+        if (problems.size() > 10) {
+            message.append("\n...");
+        }
+        Alert problemsAlert = new Alert(Alert.AlertType.WARNING,
+                message.toString());
+        problemsAlert.showAndWait();
     }
 
     private void establishProperties(Properties properties) {
@@ -1199,75 +1328,105 @@ public class StudentTracker extends Application {
         }
     }
 
-    private void copy(File source, File target)
-            throws IllegalArgumentException {
-        /* copy 
-        
-         */
-        System.out.println("Source file: " + source.getName());
-        System.out.println("Target file: " + target.getName());
-        System.out.println("Source and target files are the same? "
-                + source.getName().equals(target.getName()));
-        if (!source.getName().equals(target.getName())) {
-            try {
-                if (target.exists()) {
-                    Alert fileExistsAlert = new Alert(
-                            Alert.AlertType.CONFIRMATION,
-                            "File already exists. Overwrite?");
-                    fileExistsAlert.showAndWait().ifPresent(response -> {
-
-                        if (response != ButtonType.OK) {
-                            throw new IllegalArgumentException();
-                        }
-                    });
-                }
-                FileChannel sourceChannel = new FileInputStream(source)
-                        .getChannel();
-                FileChannel targetChannel = new FileOutputStream(target)
-                        .getChannel();
-                targetChannel.transferFrom(sourceChannel, 0, sourceChannel
-                        .size());
-                targetChannel.close();
-                sourceChannel.close();
-            } catch (IOException io) {
-                System.err.println("Method copy unable to generate file "
-                        + "channels!");
-            }
+    private boolean confirmReplaceForm() {
+        //Asks before replacing a form with one of the same name.
+        Alert formExistsAlert = new Alert(Alert.AlertType.CONFIRMATION,
+                "Form already attached. Replace it?");
+        Optional<ButtonType> response = formExistsAlert.showAndWait();
+        return response.isPresent() && response.get() == ButtonType.OK;
+    }
+
+    private boolean confirmOverwrite(File source, File target) {
+        //Asks before copying over an existing file. Must run on the FX thread.
+        if (source.getAbsoluteFile().equals(target.getAbsoluteFile())
+                || !target.exists()) {
+            return true;
         }
+        Alert fileExistsAlert = new Alert(Alert.AlertType.CONFIRMATION,
+                "File already exists. Overwrite?");
+        Optional<ButtonType> response = fileExistsAlert.showAndWait();
+        return response.isPresent() && response.get() == ButtonType.OK;
     }
 
-    private VBox createLayout(List<String> studentList, Properties properties,
-            Stage primaryStage) {
+    private <T> void transfer(String title, Stage owner,
+            FileTransfer.Work<T> work, Consumer<T> onDone,
+            Consumer<Throwable> onError, Runnable onCancel) {
+        //Runs a file transfer, showing its progress if it takes a while.
+        ProgressBar bar = new ProgressBar(0);
+        bar.setPrefWidth(300);
+        Label status = new Label(title);
+        Button cancel = new Button("Cancel");
+        VBox progressBox = new VBox(10, status, bar, cancel);
+        progressBox.setId("searchBox");
+        Stage progressStage = new Stage();
+        progressStage.initOwner(owner);
+        progressStage.setTitle(title);
+        progressStage.setScene(new Scene(progressBox));
+        FileTransfer.Task<T> task = fileTransfer.submit(work,
+                (copied, total) -> Platform.runLater(() -> {
+            bar.setProgress(total == 0 ? 1 : (double) copied / total);
+            status.setText(copied == total ? "Verifying..."
+                    : (copied >> 20) + " of " + (total >> 20) + " MB");
+        }));
+        cancel.setOnAction(event -> task.cancel());
+        progressStage.setOnCloseRequest(event -> task.cancel());
+        PauseTransition showLater = new PauseTransition(Duration.millis(500));
+        showLater.setOnFinished(event -> progressStage.show());
+        showLater.play();
+        task.getResult().whenComplete((result, ex) -> Platform.runLater(() -> {
+            showLater.stop();
+            progressStage.close();
+            if (ex == null) {
+                onDone.accept(result);
+            } else if (task.isCancelled()) {
+                System.out.println(title + " cancelled");
+                onCancel.run();
+            } else {
+                onError.accept(ex);
+            }
+        }));
+    }
+
+    private VBox createLayout(Properties properties, Stage primaryStage) {
         //Creates GUI elements and layout.
 
         //Create elements for studentList status text.
-        String stdntLstPath = properties.getProperty("studentListPath");
-        StringProperty stdntLstTxt = new SimpleStringProperty();
-        Label listStatusText = createStatusText(stdntLstTxt);
-        if (stdntLstPath.isEmpty()) {
-            stdntLstTxt.set("No student list has been selected");
+        studentListPath = properties.getProperty("studentListPath");
+        listStatusText = createStatusText(studentListText);
+        if (studentListPath.isEmpty()) {
+            studentListText.set("No student list has been selected");
             listStatusText.setTextFill(rgb(255, 0, 0));
         } else {
-            stdntLstTxt.set("Selected Student List:\n" + stdntLstPath);
-            extractStudentList(studentList, stdntLstPath);
+            studentListText.set("Selected Student List:\n" + studentListPath);
         }
 
         //Create elements for left half of GUI.
         Label stdntLbl = new Label("Student Name:");
         TextField stdntFld = new TextField();
+        Label caseloadLbl = new Label("Caseload Filter:");
+        TextField caseloadFld = new TextField();
+        caseloadFld.setPromptText("e.g. iep and group and not eval");
         ListView<String> visibleStudentList = createVisibleStudentList(
-                studentList, stdntFld, primaryStage);
+                stdntFld, caseloadFld, primaryStage);
+        if (!studentListPath.isEmpty()) {
+            visibleStudentList.setDisable(true);
+            loadStudentList(properties, studentListPath,
+                    () -> visibleStudentList.setDisable(false));
+        }
         Button setDirBtn = createDirectoryButton(properties, primaryStage);
         //Place elements in multiple VBoxes for positioning purposes.
         VBox studentName = new VBox();
         studentName.getChildren().add(stdntLbl);
         studentName.getChildren().add(stdntFld);
+        studentName.getChildren().add(caseloadLbl);
+        studentName.getChildren().add(caseloadFld);
         VBox directoryInfo = new VBox();
         directoryInfo.setId("studentInfo");
         directoryInfo.getChildren().add(studentName);
         directoryInfo.getChildren().add(setDirBtn);
         directoryInfo.getChildren().add(listStatusText);
         listStatusText.setTextOverrun(LEADING_ELLIPSIS);
+        directoryInfo.getChildren().add(createBusyIndicator());
         VBox userInput = new VBox();
         userInput.setId("userInput");
         userInput.getChildren().add(directoryInfo);
@@ -1281,10 +1440,10 @@ public class StudentTracker extends Application {
                 "AddStudentButton.png"), 110, 66, true, true);
         addStudentButton.setGraphic(new ImageView(addStudentImage));
         addStudentButton.setOnAction((ActionEvent event) -> {
-            initAddStudentStage(stdntLstPath, properties, primaryStage);
+            initAddStudentStage(properties, primaryStage);
         });
         Button removeStudentButton = initRemoveStudentButton(properties,
-                visibleStudentList, stdntLstPath);
+                visibleStudentList);
         Image removeStudentImage = new Image(getClass().getResourceAsStream(
                 "RemoveStudentButton.png"), 110, 66, true, true);
         removeStudentButton.setGraphic(new ImageView(removeStudentImage));
@@ -1307,6 +1466,19 @@ public class StudentTracker extends Application {
         MenuItem readMeMenu = createReadMeMenuItem(primaryStage);
         menuFile.getItems().add(readMeMenu);
         //Create close menu item under readme
+        //Create search menu item under readme.
+        MenuItem searchMenu = createSearchMenuItem(primaryStage);
+        menuFile.getItems().add(searchMenu);
+        //Create report menu item under search.
+        MenuItem reportMenu = createReportMenuItem(primaryStage);
+        menuFile.getItems().add(reportMenu);
+        //Create import and export menu items under report.
+        menuFile.getItems().add(createImportHistoryMenuItem(primaryStage));
+        menuFile.getItems().add(createIngestFilesMenuItem(primaryStage));
+        menuFile.getItems().add(createExportMenuItem(primaryStage));
+        //Create archive and restore menu items under report.
+        menuFile.getItems().add(createArchiveMenuItem());
+        menuFile.getItems().add(createRestoreMenuItem(primaryStage));
         MenuItem closeMenu = createCloseMenuItem();
         menuFile.getItems().add(closeMenu);
         //Add File menu to menuBar.
@@ -1319,7 +1491,7 @@ public class StudentTracker extends Application {
     }
 
     private Button initRemoveStudentButton(Properties properties,
-            ListView<String> visibleStudentList, String stdntLstPath) {
+            ListView<String> visibleStudentList) {
         Button removeStudentButton = new Button();
         removeStudentButton.setOnAction((ActionEvent event) -> {
             String drop
@@ -1330,17 +1502,16 @@ public class StudentTracker extends Application {
                     name[1] += " " + name[2];
                 }
                 String[] formattedName = {name[1], name[0]};
-                String[] fileName = new File(stdntLstPath).getName().split(" ");
-
-                if (fileName[0].equals("Modified")) {
-                    modifyStudentList(formattedName, stdntLstPath, "rem");
-                    resetVisibleList(properties, stdntLstPath);
-                } else {
-                    String modListPath = resourcePath + File.separator
-                            + "Modified " + new File(stdntLstPath).getName();
-                    modifyStudentList(formattedName, modListPath, "rem");
-                    resetVisibleList(properties, modListPath);
-                }
+                String listPath = modifiedListPath();
+                removeStudentButton.setDisable(true);
+                background.submit(() -> modifyStudentList(formattedName,
+                        listPath, "rem"), names -> {
+                    updateStudentList(properties, listPath, names);
+                    removeStudentButton.setDisable(false);
+                }, ex -> {
+                    removeStudentButton.setDisable(false);
+                    System.err.println("Could not remove student: " + ex);
+                });
             }
         });
         return removeStudentButton;
@@ -1379,12 +1550,319 @@ public class StudentTracker extends Application {
         return readMeMenu;
     }
 
+    private MenuItem createSearchMenuItem(Stage primaryStage) {
+        //Create menu item to search notes and form names.
+
+        MenuItem searchMenu = new MenuItem("Search Notes");
+        searchMenu.setOnAction((ActionEvent event) -> {
+            Stage searchStage = new Stage();
+            searchStage.initOwner(primaryStage);
+            searchStage.initModality(Modality.NONE);
+            searchStage.setTitle("Search Notes and Forms");
+            TextField searchField = new TextField();
+            searchField.setPromptText("Words in notes or form names");
+            Label searchStatus = new Label();
+            ListView<StudentSearch.Hit> hits = new ListView<>();
+            hits.setPrefSize(520, 360);
+            //Search once typing pauses, newest search wins.
+            PauseTransition typing = new PauseTransition(Duration.millis(200));
+            typing.setOnFinished(pause -> {
+                String text = searchField.getText();
+                long started = System.nanoTime();
+                background.submit(() -> {
+                    writeQueue.flush();
+                    return studentSearch.search(text, 200);
+                }, found -> {
+                    if (text.equals(searchField.getText())) {
+                        hits.getItems().setAll(found);
+                        searchStatus.setText(found.size() + " students found "
+                                + "in " + (System.nanoTime() - started)
+                                / 1000000 + " ms");
+                    }
+                });
+            });
+            searchField.textProperty().addListener((obs, oldVal, newVal) -> {
+                typing.playFromStart();
+            });
+            hits.setOnMouseClicked((MouseEvent click) -> {
+                StudentSearch.Hit hit = hits.getSelectionModel()
+                        .getSelectedItem();
+                if (click.getClickCount() == 2 && hit != null) {
+                    openStudent(hit.getFullName(), hits, primaryStage);
+                }
+            });
+            VBox layout = new VBox();
+            layout.setId("searchBox");
+            layout.getChildren().addAll(searchField, searchStatus, hits);
+            Scene searchScene = new Scene(layout);
+            searchScene.getStylesheets().add(StudentTracker.class.getResource(
+                    "Main.css").toExternalForm());
+            searchStage.setScene(searchScene);
+            searchStage.show();
+        });
+        return searchMenu;
+    }
+
+    private MenuItem createReportMenuItem(Stage primaryStage) {
+        //Create menu item to show caseload totals.
+
+        MenuItem reportMenu = new MenuItem("Caseload Report");
+        reportMenu.setOnAction((ActionEvent event) -> {
+            Stage reportStage = new Stage();
+            reportStage.initModality(Modality.NONE);
+            reportStage.initOwner(primaryStage);
+            reportStage.setTitle("Caseload Report");
+            TextArea reportText = new TextArea(caseloadReport.format(
+                    Dates.today()));
+            reportText.setEditable(false);
+            VBox dialogVbox = new VBox(20);
+            dialogVbox.getChildren().add(reportText);
+            Scene dialogScene = new Scene(dialogVbox, 420, 520);
+            reportStage.setScene(dialogScene);
+            reportStage.show();
+        });
+        return reportMenu;
+    }
+
+    private MenuItem createImportHistoryMenuItem(Stage primaryStage) {
+        //Create menu item to bulk import past service dates and walk-ins.
+
+        MenuItem importMenu = new MenuItem("Import Service History");
+        importMenu.setOnAction((ActionEvent event) -> {
+            FileChooser chooseHistory = new FileChooser();
+            chooseHistory.setInitialDirectory(new File(resourcePath));
+            chooseHistory.setTitle("Import Service History");
+            File historyFile = chooseHistory.showOpenDialog(primaryStage);
+            if (historyFile == null) {
+                return;
+            }
+            File rejectFile = new File(historyFile.getPath() + ".rejects");
+            importMenu.setDisable(true);
+            background.submit(() -> {
+                writeQueue.flush();
+                HistoryImport.Result result;
+                try (Reader reader = new InputStreamReader(
+                        new FileInputStream(historyFile),
+                        StandardCharsets.UTF_8);
+                        Writer rejects = new OutputStreamWriter(
+                                new FileOutputStream(rejectFile),
+                                StandardCharsets.UTF_8)) {
+                    result = new HistoryImport(studentStore, 1000,
+                            Runtime.getRuntime().availableProcessors())
+                            .run(reader, rejects);
+                }
+                if (result.getRejected() == 0) {
+                    Files.deleteIfExists(rejectFile.toPath());
+                }
+                //Reload everyone the import touched.
+                for (String fullName : result.getFullNames()) {
+                    forgetStudent(fullName);
+                }
+                preloadStudents(result.getFullNames());
+                return result;
+            }, result -> {
+                importMenu.setDisable(false);
+                refreshVisibleList.run();
+                Alert done = new Alert(Alert.AlertType.INFORMATION,
+                        result + (result.getRejected() == 0 ? ""
+                        : ".\nRejected rows were written to "
+                        + rejectFile.getName() + "."));
+                done.showAndWait();
+            }, ex -> {
+                importMenu.setDisable(false);
+                Alert failed = new Alert(Alert.AlertType.WARNING,
+                        "Could not import " + historyFile.getName() + ": "
+                        + ex.getMessage());
+                failed.showAndWait();
+            });
+        });
+        return importMenu;
+    }
+
+    private MenuItem createIngestFilesMenuItem(Stage primaryStage) {
+        //Create menu item to attach an existing Student Files tree in bulk.
+
+        MenuItem ingestMenu = new MenuItem("Ingest Student Files");
+        ingestMenu.setOnAction((ActionEvent event) -> {
+            if (roster == null) {
+                Alert noRoster = new Alert(Alert.AlertType.WARNING,
+                        "Select a student list first; folders are matched "
+                        + "to the students on it.");
+                noRoster.showAndWait();
+                return;
+            }
+            DirectoryChooser chooseFolder = new DirectoryChooser();
+            chooseFolder.setInitialDirectory(new File(resourcePath));
+            chooseFolder.setTitle("Ingest Student Files");
+            File folder = chooseFolder.showDialog(primaryStage);
+            if (folder == null) {
+                return;
+            }
+            List<String> rosterNames = roster.fullNames();
+            ingestMenu.setDisable(true);
+            background.submit(() -> {
+                writeQueue.flush();
+                BulkIngest.Result result = new BulkIngest(studentStore,
+                        attachmentStore, 500, Runtime.getRuntime()
+                        .availableProcessors()).run(folder.toPath(),
+                                rosterNames);
+                //Reload everyone who was given forms.
+                for (String fullName : result.getFullNames()) {
+                    forgetStudent(fullName);
+                }
+                preloadStudents(result.getFullNames());
+                return result;
+            }, result -> {
+                ingestMenu.setDisable(false);
+                refreshVisibleList.run();
+                StringBuilder message = new StringBuilder(result.toString());
+                List<String> unmatched = result.getUnmatched();
+                if (!unmatched.isEmpty()) {
+                    message.append(".\nNo student on the list for: ");
+                    message.append(String.join(", ", unmatched.subList(0,
+                            Math.min(unmatched.size(), 20))));
+                    if (unmatched.size() > 20) {
+                        message.append(" and ").append(unmatched.size() - 20)
+                                .append(" more");
+                    }
+                }
+                Alert done = new Alert(Alert.AlertType.INFORMATION,
+                        message.toString());
+                done.showAndWait();
+            }, ex -> {
+                ingestMenu.setDisable(false);
+                Alert failed = new Alert(Alert.AlertType.WARNING,
+                        "Could not ingest " + folder.getName() + ": "
+                        + ex.getMessage());
+                failed.showAndWait();
+            });
+        });
+        return ingestMenu;
+    }
+
+    private MenuItem createExportMenuItem(Stage primaryStage) {
+        //Create menu item to export the students shown by the caseload filter.
+
+        MenuItem exportMenu = new MenuItem("Export Students");
+        exportMenu.setOnAction((ActionEvent event) -> {
+            FileChooser chooseExport = new FileChooser();
+            chooseExport.setInitialDirectory(new File(resourcePath));
+            chooseExport.setTitle("Export Students");
+            chooseExport.getExtensionFilters().addAll(
+                    new FileChooser.ExtensionFilter("CSV", "*.csv"),
+                    new FileChooser.ExtensionFilter("JSON Lines", "*.jsonl"));
+            File exportFile = chooseExport.showSaveDialog(primaryStage);
+            if (exportFile == null) {
+                return;
+            }
+            Exporter exporter = new Exporter(studentStore,
+                    exportFile.getName().endsWith(".jsonl")
+                    ? Exporter.Format.JSONL : Exporter.Format.CSV, 1000);
+            exporter.setFilter(caseloadFilter);
+            exporter.setChildren(true);
+            exportMenu.setDisable(true);
+            background.submit(() -> {
+                writeQueue.flush();
+                return exporter.export(exportFile.toPath());
+            }, count -> {
+                exportMenu.setDisable(false);
+                Alert done = new Alert(Alert.AlertType.INFORMATION,
+                        "Exported " + count + " students to "
+                        + exportFile.getName() + ".");
+                done.showAndWait();
+            }, ex -> {
+                exportMenu.setDisable(false);
+                System.err.println("Could not export students: " + ex);
+            });
+        });
+        return exportMenu;
+    }
+
+    private MenuItem createArchiveMenuItem() {
+        //Create menu item to archive students at the end of a school year.
+
+        MenuItem archiveMenu = new MenuItem("Archive School Year");
+        archiveMenu.setOnAction((ActionEvent event) -> {
+            int schoolYear = Archive.schoolYear(Dates.today());
+            Alert confirm = new Alert(Alert.AlertType.CONFIRMATION,
+                    "Move students whose services have all ended, or who are "
+                    + "not on the selected student list, to the archive for "
+                    + "school year " + schoolYear + "-" + (schoolYear + 1)
+                    + "?");
+            Optional<ButtonType> answer = confirm.showAndWait();
+            if (!answer.isPresent() || answer.get() != ButtonType.OK) {
+                return;
+            }
+            List<String> rosterNames = roster == null ? null
+                    : roster.fullNames();
+            archiveMenu.setDisable(true);
+            background.submit(() -> {
+                writeQueue.flush();
+                return archive.rollover(schoolYear, rosterNames);
+            }, result -> {
+                archiveMenu.setDisable(false);
+                for (int id : result.getIds()) {
+                    studentCache.remove(id);
+                    caseloadIndex.remove(id);
+                    caseloadReport.remove(id);
+                }
+                refreshVisibleList.run();
+                Alert done = new Alert(Alert.AlertType.INFORMATION,
+                        result.toString());
+                done.showAndWait();
+            }, ex -> {
+                archiveMenu.setDisable(false);
+                System.err.println("Could not archive school year: " + ex);
+            });
+        });
+        return archiveMenu;
+    }
+
+    private MenuItem createRestoreMenuItem(Stage primaryStage) {
+        //Create menu item to bring an archived student back.
+
+        MenuItem restoreMenu = new MenuItem("Restore Student");
+        restoreMenu.setOnAction((ActionEvent event) -> {
+            TextInputDialog nameDialog = new TextInputDialog();
+            nameDialog.initOwner(primaryStage);
+            nameDialog.setTitle("Restore Student");
+            nameDialog.setHeaderText("Full name of the archived student");
+            Optional<String> name = nameDialog.showAndWait();
+            if (!name.isPresent() || name.get().trim().isEmpty()) {
+                return;
+            }
+            String fullName = name.get().trim();
+            background.submit(() -> {
+                writeQueue.flush();
+                int id = archive.restore(fullName);
+                if (id < 0) {
+                    return null;
+                }
+                //Replace any empty record cached since the archive.
+                forgetStudent(fullName);
+                return accessDatabase(fullName);
+            }, restored -> {
+                refreshVisibleList.run();
+                Alert done = new Alert(Alert.AlertType.INFORMATION,
+                        restored == null ? "No archived student is named "
+                        + fullName + "." : "Restored " + fullName + ".");
+                done.showAndWait();
+            }, ex -> {
+                Alert failed = new Alert(Alert.AlertType.WARNING,
+                        "Could not restore " + fullName + ": "
+                        + ex.getMessage());
+                failed.showAndWait();
+            });
+        });
+        return restoreMenu;
+    }
+
     private MenuItem createCloseMenuItem() {
         //Create menu item to exit application.
 
         MenuItem closeMenu = new MenuItem("Close");
         closeMenu.setOnAction((ActionEvent event) -> {
-            System.exit(0);
+            Platform.exit();
         });
         return closeMenu;
     }
@@ -1409,29 +1887,39 @@ public class StudentTracker extends Application {
                 //Modify properties file to reflect change in path of student list file.
                 File target = new File(resourcePath + File.separator
                         + listFile.getName());
-                copy(listFile, target);
-                resetVisibleList(properties, resourcePath + File.separator
-                        + listFile.getName());
+                if (confirmOverwrite(listFile, target)) {
+                    dirBtn.setDisable(true);
+                    transfer("Copying " + listFile.getName(), primaryStage,
+                            progress -> {
+                        if (!listFile.getAbsoluteFile().equals(
+                                target.getAbsoluteFile())) {
+                            FileTransfer.copy(listFile.toPath(),
+                                    target.toPath(), null, progress);
+                        }
+                        return target.getPath();
+                    }, copied -> loadStudentList(properties, copied,
+                            () -> dirBtn.setDisable(false)), ex -> {
+                        dirBtn.setDisable(false);
+                        System.err.println("Could not copy student list: "
+                                + ex);
+                    }, () -> dirBtn.setDisable(false));
+                }
 
             }
         });
         return dirBtn;
     }
 
-    private void resetVisibleList(Properties properties, String listFile) {
+    private void setStudentListPath(Properties properties, String listFile) {
+        studentListPath = listFile;
+        studentListText.set("Selected Student List:\n" + listFile);
+        listStatusText.setTextFill(rgb(0, 0, 0));
         properties.setProperty("studentListPath", listFile);
-        try {
-            FileOutputStream saveProp = new FileOutputStream(resourcePath
-                    + File.separator + "data.properties");
-            try {
-                properties.store(saveProp, null);
-            } catch (IOException io) {
-                System.err.println("Could not update properties: " + io);
-            }
-            restartApplication();
-        } catch (FileNotFoundException fnf) {
-            System.err.println("Could not find save to properties file: "
-                    + fnf);
+        try (FileOutputStream saveProp = new FileOutputStream(resourcePath
+                + File.separator + "data.properties")) {
+            properties.store(saveProp, null);
+        } catch (IOException io) {
+            System.err.println("Could not update properties: " + io);
         }
     }
 
@@ -1447,33 +1935,4 @@ public class StudentTracker extends Application {
             line = br.readLine();
         }
     }
-
-    private void restartApplication() {
-        //Restarts application
-
-        final String javaBin = System.getProperty("java.home")
-                + File.separator + "bin" + File.separator + "java";
-        try {
-            final File currentJar = new File(StudentTracker.class
-                    .getProtectionDomain().getCodeSource().getLocation()
-                    .toURI());
-            if (!currentJar.getName().endsWith(".jar")) {
-                return;
-            }
-            final ArrayList<String> command = new ArrayList<>();
-            command.add(javaBin);
-            command.add("-jar");
-            command.add(currentJar.getPath());
-            final ProcessBuilder builder = new ProcessBuilder(command);
-            try {
-                builder.start();
-            } catch (IOException io) {
-                System.err.println("I/O exception, program could not be "
-                        + "restarted." + io);
-            }
-            System.exit(0);
-        } catch (URISyntaxException uri) {
-            System.err.println("URI syntax exception: " + uri);
-        }
-    }
 }
@@ -0,0 +1,500 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Command-line entry point for scripted and nightly jobs. It opens the same
+ * database through the same store classes as the application but never
+ * touches JavaFX, so it runs on a headless server and starts in well under a
+ * second. Results go to standard output; progress and the store's own
+ * logging go to standard error.
+ *
+ * <pre>
+ * StudentTrackerCli [--db path] command [options]
+ *   import-roster file        add every student on a roster
+ *   import-history [--rejects file] [--threads n] file
+ *                             merge service dates and walk-ins, see
+ *                             {@link HistoryImport} for the layout
+ *   add-walkins file          record "Full Name,MM-dd-yyyy" lines, - for stdin
+ *   ingest-files --roster file [--link] [--threads n] [--attachments dir]
+ *                folder       attach a Student Files tree, see
+ *                             {@link BulkIngest}
+ *   export [--format csv|jsonl] [--out file] [--fetch-size n]
+ *          [--filter "iep and not eval"] [--name prefix] [--children]
+ *   archive [--year yyyy] [--roster file]
+ *   report [--date MM-dd-yyyy]
+ *   as-of [--journal file] MM-dd-yyyy "Full Name"
+ *                             a student as they stood at the end of a day,
+ *                             from the {@link ChangeJournal}
+ * </pre>
+ *
+ * Exit codes: 0 done, 1 failed, 2 bad command line, 3 done but some input
+ * rows were rejected, or some folders were not matched.
+ *
+ * @author Andrew Burch
+ */
+public final class StudentTrackerCli {
+
+    public static final int OK = 0;
+    public static final int FAILED = 1;
+    public static final int USAGE = 2;
+    public static final int REJECTED_ROWS = 3;
+
+    public static void main(String[] args) {
+        //Keep standard output for results; the store classes log to it.
+        PrintStream out = System.out;
+        System.setOut(System.err);
+        System.exit(new StudentTrackerCli(out).run(args));
+    }
+
+    StudentTrackerCli(PrintStream out) {
+        this.out = out;
+    }
+
+    int run(String[] args) {
+        List<String> rest = new ArrayList<>(Arrays.asList(args));
+        //Same default as the application, without loading its JavaFX class.
+        boolean defaultDb = !rest.contains("--db");
+        String dbPath = option(rest, "--db", Paths.get(System.getProperty(
+                "user.dir"), "Resources", "students.db").toString());
+        if (rest.isEmpty()) {
+            return usage("No command given.");
+        }
+        String command = rest.remove(0);
+        long started = System.nanoTime();
+        try (Database database = openDatabase(dbPath, defaultDb)) {
+            Migrations.migrate(database);
+            replayJournal(database, dbPath);
+            StudentStore store = new StudentStore(database);
+            int status;
+            switch (command) {
+                case "import-roster":
+                    status = importRoster(store, rest);
+                    break;
+                case "import-history":
+                    status = importHistory(store, rest);
+                    break;
+                case "add-walkins":
+                    status = addWalkIns(store, rest);
+                    break;
+                case "ingest-files":
+                    status = ingestFiles(database, store, dbPath, rest);
+                    break;
+                case "export":
+                    status = export(store, rest);
+                    break;
+                case "archive":
+                    status = archive(database, rest);
+                    break;
+                case "report":
+                    status = report(store, rest);
+                    break;
+                case "as-of":
+                    status = asOf(database, store, dbPath, rest);
+                    break;
+                default:
+                    return usage("Unknown command " + command + ".");
+            }
+            System.err.println(command + " finished in "
+                    + (System.nanoTime() - started) / 1000000 + " ms");
+            return status;
+        } catch (IllegalArgumentException iae) {
+            return usage(iae.getMessage());
+        } catch (SQLException | IOException ex) {
+            System.err.println(command + " failed: " + ex);
+            return FAILED;
+        }
+    }
+
+    private static Database openDatabase(String dbPath, boolean defaultDb)
+            throws SQLException, IOException {
+        if (defaultDb) {
+            //Pick up an install's students the way the application does.
+            Migrations.importLegacy(Paths.get(dbPath), Paths.get(
+                    System.getProperty("user.dir"), "students.db"));
+        }
+        return new Database(dbPath);
+    }
+
+    /**
+     * Writes the GUI's journaled changes that never reached the database,
+     * as the application does at start-up. Otherwise the application would
+     * replay them over whatever this run writes, and a replayed walk-in
+     * list would drop the walk-ins added here.
+     */
+    private static void replayJournal(Database database, String dbPath)
+            throws SQLException, IOException {
+        WriteQueue writeQueue = new WriteQueue(database, 2000, 50);
+        try {
+            int replayed = ChangeJournal.readAfter(journalPath(dbPath),
+                    writeQueue.getCheckpoint(), change -> writeQueue.enqueue(
+                            change.getStudentId(), change.getCategory(),
+                            change.getNewValue(), change.getSeq()));
+            writeQueue.flush();
+            if (replayed > 0) {
+                System.err.println("Replayed " + replayed + " journaled "
+                        + "changes");
+            }
+        } finally {
+            writeQueue.close();
+        }
+    }
+
+    //The application keeps its journal next to the database.
+    private static Path journalPath(String dbPath) {
+        return Paths.get(dbPath).toAbsolutePath()
+                .resolveSibling("changes.journal");
+    }
+
+    private int importRoster(StudentStore store, List<String> args)
+            throws IOException {
+        String file = argument(args, "roster file");
+        RosterImport rosterImport = new RosterImport(store, BATCH_SIZE, null);
+        List<RosterReader.Problem> problems;
+        try (Reader reader = open(file)) {
+            problems = new RosterReader().read(reader, rosterImport);
+            rosterImport.finish();
+        }
+        for (RosterReader.Problem problem : problems) {
+            System.err.println(file + ": " + problem);
+        }
+        out.println("Read " + rosterImport.getRows() + " students, added "
+                + rosterImport.getAdded() + ", rejected " + problems.size());
+        return problems.isEmpty() ? OK : REJECTED_ROWS;
+    }
+
+    private int importHistory(StudentStore store, List<String> args)
+            throws IOException, SQLException {
+        String rejectFile = option(args, "--rejects", null);
+        int threads = Integer.parseInt(option(args, "--threads", String.valueOf(
+                Runtime.getRuntime().availableProcessors())));
+        String file = argument(args, "history file");
+        HistoryImport.Result result;
+        try (Reader reader = open(file);
+                Writer rejects = rejectFile == null ? null
+                        : new OutputStreamWriter(new FileOutputStream(
+                                rejectFile), StandardCharsets.UTF_8)) {
+            result = new HistoryImport(store, BATCH_SIZE, threads).run(reader,
+                    rejects);
+        }
+        out.println(result);
+        return result.getRejected() == 0 ? OK : REJECTED_ROWS;
+    }
+
+    private int addWalkIns(StudentStore store, List<String> args)
+            throws IOException, SQLException {
+        String file = argument(args, "walk-in file");
+        List<String> names = new ArrayList<>(BATCH_SIZE);
+        List<Integer> days = new ArrayList<>(BATCH_SIZE);
+        List<String> fields = new ArrayList<>();
+        int added = 0;
+        int read = 0;
+        int rejected = 0;
+        int lineNumber = 0;
+        try (BufferedReader reader = new BufferedReader(open(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                RosterReader.split(line, line.indexOf('\t') >= 0 ? '\t' : ',',
+                        fields);
+                try {
+                    if (fields.size() != 2 || fields.get(0).isEmpty()) {
+                        throw new IllegalStateException("expected a name and "
+                                + "a date");
+                    }
+                    int day = Dates.parseEntered(fields.get(1));
+                    names.add(fields.get(0));
+                    days.add(day);
+                } catch (IllegalStateException | DateTimeParseException ex) {
+                    System.err.println(file + ": line " + lineNumber + ": "
+                            + ex.getMessage());
+                    rejected++;
+                    continue;
+                }
+                read++;
+                if (names.size() >= BATCH_SIZE) {
+                    added += store.addWalkIns(names, days);
+                    names.clear();
+                    days.clear();
+                }
+            }
+        }
+        if (!names.isEmpty()) {
+            added += store.addWalkIns(names, days);
+        }
+        out.println("Added " + added + " walk-ins, skipped " + (read - added)
+                + " already recorded, rejected " + rejected);
+        return rejected == 0 ? OK : REJECTED_ROWS;
+    }
+
+    private int ingestFiles(Database database, StudentStore store,
+            String dbPath, List<String> args) throws IOException,
+            SQLException {
+        String rosterFile = option(args, "--roster", null);
+        int threads = Integer.parseInt(option(args, "--threads", String.valueOf(
+                Runtime.getRuntime().availableProcessors())));
+        //The application keeps attachments next to the database.
+        String attachmentDir = option(args, "--attachments", Paths.get(dbPath)
+                .toAbsolutePath().resolveSibling("Attachments").toString());
+        boolean link = args.remove("--link");
+        String folder = argument(args, "Student Files folder");
+        if (rosterFile == null) {
+            throw new IllegalArgumentException("--roster is required.");
+        }
+        List<String> rosterNames = new ArrayList<>();
+        try (Reader reader = open(rosterFile)) {
+            new RosterReader().read(reader, (firstName, lastName)
+                    -> rosterNames.add(firstName + " " + lastName));
+        }
+        BulkIngest ingest = new BulkIngest(store, new AttachmentStore(
+                database, Paths.get(attachmentDir)), BATCH_SIZE, threads);
+        ingest.setLink(link);
+        BulkIngest.Result result = ingest.run(Paths.get(folder), rosterNames);
+        for (String unmatched : result.getUnmatched()) {
+            System.err.println("No roster student for folder " + unmatched);
+        }
+        out.println(result);
+        return result.getFailed() == 0 && result.getUnmatched().isEmpty() ? OK
+                : REJECTED_ROWS;
+    }
+
+    private int export(StudentStore store, List<String> args)
+            throws IOException, SQLException {
+        String file = option(args, "--out", null);
+        String format = option(args, "--format", "csv");
+        int fetchSize = Integer.parseInt(option(args, "--fetch-size",
+                String.valueOf(BATCH_SIZE)));
+        String filter = option(args, "--filter", null);
+        String name = option(args, "--name", null);
+        boolean children = args.remove("--children");
+        noMoreArguments(args);
+        Exporter.Format exportFormat;
+        try {
+            exportFormat = Exporter.Format.valueOf(format.toUpperCase(
+                    Locale.ROOT));
+        } catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException("Unknown format " + format
+                    + ".");
+        }
+        Exporter exporter = new Exporter(store, exportFormat, fetchSize);
+        if (filter != null) {
+            try {
+                exporter.setFilter(CaseloadIndex.parse(filter));
+            } catch (ParseException pe) {
+                throw new IllegalArgumentException("Bad filter: "
+                        + pe.getMessage() + ".");
+            }
+        }
+        exporter.setNamePrefix(name);
+        exporter.setChildren(children);
+        if (file == null) {
+            exporter.export(new OutputStreamWriter(out,
+                    StandardCharsets.UTF_8));
+        } else {
+            exporter.export(Paths.get(file));
+        }
+        return OK;
+    }
+
+    private int archive(Database database, List<String> args)
+            throws IOException, SQLException {
+        int schoolYear = Integer.parseInt(option(args, "--year",
+                String.valueOf(Archive.schoolYear(Dates.today()))));
+        String rosterFile = option(args, "--roster", null);
+        noMoreArguments(args);
+        List<String> rosterNames = null;
+        if (rosterFile != null) {
+            List<String> names = new ArrayList<>();
+            try (Reader reader = open(rosterFile)) {
+                new RosterReader().read(reader, (firstName, lastName)
+                        -> names.add(firstName + " " + lastName));
+            }
+            rosterNames = names;
+        }
+        out.println(new Archive(database).rollover(schoolYear, rosterNames));
+        return OK;
+    }
+
+    private int report(StudentStore store, List<String> args)
+            throws SQLException {
+        String date = option(args, "--date", null);
+        noMoreArguments(args);
+        int day;
+        try {
+            day = date == null ? Dates.today() : Dates.parse(date);
+        } catch (DateTimeParseException dtp) {
+            throw new IllegalArgumentException("Bad date " + date + ".");
+        }
+        CaseloadReport report = new CaseloadReport();
+        report.rebuild(store);
+        out.println(report.format(day));
+        return OK;
+    }
+
+    private int asOf(Database database, StudentStore store, String dbPath,
+            List<String> args) throws IOException, SQLException {
+        String journalFile = option(args, "--journal",
+                journalPath(dbPath).toString());
+        if (args.size() != 2) {
+            throw new IllegalArgumentException("Expected a date and a full "
+                    + "name.");
+        }
+        int day;
+        try {
+            day = Dates.parseEntered(args.get(0));
+        } catch (DateTimeParseException dtp) {
+            throw new IllegalArgumentException("Bad date " + args.get(0)
+                    + ".");
+        }
+        String fullName = args.get(1);
+        boolean known = database.run("find student", db -> {
+            PreparedStatement query = db.prepare("select 1 from students "
+                    + "where fullName = ?;");
+            query.setString(1, fullName);
+            try (ResultSet rs = query.executeQuery()) {
+                return rs.next();
+            }
+        });
+        if (!known) {
+            System.err.println("No student named " + fullName);
+            return FAILED;
+        }
+        Student student = store.load(fullName);
+        long endOfDay = LocalDate.ofEpochDay(day + 1L).atStartOfDay(
+                ZoneId.systemDefault()).toInstant().toEpochMilli() - 1;
+        //Read only; the application may be appending to it meanwhile.
+        Map<Category, Object> journaled = Files.exists(Paths.get(journalFile))
+                ? ChangeJournal.readAsOf(Paths.get(journalFile),
+                        student.getId(), endOfDay)
+                : Collections.emptyMap();
+        out.println(fullName + " as of " + Dates.format(day) + ":");
+        for (Category cat : Category.values()) {
+            if (cat == Category.fullName || cat == Category.firstName
+                    || cat == Category.lastName) {
+                continue;
+            }
+            Object value = journaled.containsKey(cat) ? journaled.get(cat)
+                    : student.getColumn(cat);
+            out.println("  " + cat + ": " + describe(cat, value));
+        }
+        return OK;
+    }
+
+    /**
+     * Formats a column value as {@link Student#getColumn} returns it.
+     */
+    @SuppressWarnings("unchecked")
+    private static String describe(Category cat, Object value) {
+        if (value == null) {
+            return "";
+        }
+        if (value instanceof Integer) {
+            return Dates.format((Integer) value);
+        }
+        List<String> items = new ArrayList<>();
+        if (value instanceof int[]) {
+            for (int day : (int[]) value) {
+                items.add(Dates.format(day));
+            }
+            return String.join(";", items);
+        }
+        if (cat == Category.forms) {
+            for (Form form : (Collection<Form>) value) {
+                items.add(form.getFileName());
+            }
+            return String.join(";", items);
+        }
+        return value.toString();
+    }
+
+    private static Reader open(String file) throws IOException {
+        return new InputStreamReader(file.equals("-") ? System.in
+                : new FileInputStream(file));
+    }
+
+    /**
+     * Removes name and its value from args, returning the value or
+     * fallback if the option is not there.
+     */
+    private static String option(List<String> args, String name,
+            String fallback) {
+        int index = args.indexOf(name);
+        if (index < 0) {
+            return fallback;
+        }
+        if (index + 1 >= args.size()) {
+            throw new IllegalArgumentException(name + " needs a value.");
+        }
+        args.remove(index);
+        return args.remove(index);
+    }
+
+    private static String argument(List<String> args, String what) {
+        if (args.size() != 1) {
+            throw new IllegalArgumentException("Expected one " + what + ".");
+        }
+        return args.remove(0);
+    }
+
+    private static void noMoreArguments(List<String> args) {
+        if (!args.isEmpty()) {
+            throw new IllegalArgumentException("Unexpected " + args + ".");
+        }
+    }
+
+    private int usage(String problem) {
+        System.err.println(problem);
+        System.err.println("Usage: StudentTrackerCli [--db path] command "
+                + "[options]\n"
+                + "  import-roster file\n"
+                + "  import-history [--rejects file] [--threads n] file\n"
+                + "  add-walkins file (Full Name,MM-dd-yyyy per line, - for "
+                + "stdin)\n"
+                + "  ingest-files --roster file [--link] [--threads n]\n"
+                + "               [--attachments dir] folder\n"
+                + "  export [--format csv|jsonl] [--out file] [--fetch-size n]\n"
+                + "         [--filter expression] [--name prefix] [--children]\n"
+                + "  archive [--year yyyy] [--roster file]\n"
+                + "  report [--date MM-dd-yyyy]\n"
+                + "  as-of [--journal file] MM-dd-yyyy \"Full Name\"");
+        return USAGE;
+    }
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final PrintStream out;
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2016 Andrew Burch.
+ *
+ * This software is not available for distribution under any license.
+ */
+package studenttracker;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue for student field changes. Repeated changes to the same
+ * student and column collapse into one pending write, and pending writes are
+ * flushed together in a single transaction on a timer, once the queue holds
+ * maxPending writes, or when {@link #flush} or {@link #close} is called.
+ * <p>
+ * Changes that were first written to the {@link ChangeJournal} are queued
+ * with their journal sequence number, and each flush records the highest
+ * one it saved as the journal checkpoint in the same transaction, then
+ * passes it to the journal set with {@link #setJournal} so it can move the
+ * saved changes aside.
+ *
+ * @author Andrew Burch
+ */
+public class WriteQueue implements AutoCloseable {
+
+    public WriteQueue(Database database, long flushMillis, int maxPending) {
+        this.database = database;
+        this.maxPending = maxPending;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis,
+                flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues value to be written to cat for the student with the given id,
+     * replacing any value still pending for the same student and column.
+     */
+    public void enqueue(int id, Category cat, Object value) {
+        enqueue(id, cat, value, 0);
+    }
+
+    /**
+     * Queues value as {@link #enqueue(int, Category, Object)} does, for a
+     * change journaled with the sequence number journalSeq.
+     */
+    public void enqueue(int id, Category cat, Object value, long journalSeq) {
+        int size;
+        synchronized (pending) {
+            pending.put(new Key(id, cat), value);
+            journaled = Math.max(journaled, journalSeq);
+            size = pending.size();
+        }
+        if (size >= maxPending) {
+            flushSoon();
+        }
+    }
+
+    /**
+     * Tells journal, after each flush, which of its changes are in the
+     * database.
+     */
+    public void setJournal(ChangeJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Returns the sequence number of the last journaled change known to be
+     * in the database.
+     */
+    public long getCheckpoint() throws SQLException {
+        return database.run("read journal checkpoint", db -> {
+            try (ResultSet rs = db.prepare("select max(seq) from "
+                    + "journal_checkpoint;").executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        });
+    }
+
+    /**
+     * Starts a flush on the background thread without waiting for it.
+     */
+    public void flushSoon() {
+        if (!flusher.isShutdown()) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    /**
+     * Writes every pending change in one transaction and waits for it to
+     * commit. Changes that fail to write are put back on the queue unless a
+     * newer value has been queued in the meantime.
+     */
+    public void flush() throws SQLException {
+        synchronized (flushLock) {
+            Map<Key, Object> batch;
+            long checkpoint;
+            synchronized (pending) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = new LinkedHashMap<>(pending);
+                pending.clear();
+                checkpoint = journaled;
+            }
+            try {
+                write(batch, checkpoint);
+            } catch (SQLException sql) {
+                synchronized (pending) {
+                    for (Map.Entry<Key, Object> entry : batch.entrySet()) {
+                        pending.putIfAbsent(entry.getKey(), entry.getValue());
+                    }
+                }
+                throw sql;
+            }
+            if (journal != null && checkpoint > 0) {
+                try {
+                    journal.checkpoint(checkpoint);
+                } catch (IOException io) {
+                    System.err.println("Could not checkpoint the change "
+                            + "journal: " + io);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        flushQuietly();
+    }
+
+    private void write(Map<Key, Object> batch, long checkpoint)
+            throws SQLException {
+        long started = System.nanoTime();
+        Map<Category, List<Map.Entry<Key, Object>>> byColumn
+                = new EnumMap<>(Category.class);
+        for (Map.Entry<Key, Object> entry : batch.entrySet()) {
+            byColumn.computeIfAbsent(entry.getKey().cat,
+                    cat -> new ArrayList<>()).add(entry);
+        }
+        database.transaction("flush " + batch.size() + " writes", db -> {
+            for (Map.Entry<Category, List<Map.Entry<Key, Object>>> column
+                    : byColumn.entrySet()) {
+                if (column.getKey() == Category.walkIns) {
+                    writeWalkIns(db, column.getValue());
+                    continue;
+                }
+                if (column.getKey() == Category.forms) {
+                    writeForms(db, column.getValue());
+                    continue;
+                }
+                PreparedStatement update = db.prepare("update students set "
+                        + column.getKey() + " = ? where id = ?;");
+                for (Map.Entry<Key, Object> entry : column.getValue()) {
+                    update.setObject(1, entry.getValue());
+                    update.setInt(2, entry.getKey().id);
+                    update.addBatch();
+                }
+                update.executeBatch();
+            }
+            Set<Integer> searchable = new HashSet<>();
+            for (Category cat : SEARCHABLE) {
+                for (Map.Entry<Key, Object> entry
+                        : byColumn.getOrDefault(cat,
+                                Collections.emptyList())) {
+                    searchable.add(entry.getKey().id);
+                }
+            }
+            if (!searchable.isEmpty()) {
+                StudentSearch.reindex(db, searchable);
+            }
+            if (checkpoint > 0) {
+                PreparedStatement advance = db.prepare("update "
+                        + "journal_checkpoint set seq = ? where seq < ?;");
+                advance.setLong(1, checkpoint);
+                advance.setLong(2, checkpoint);
+                advance.executeUpdate();
+            }
+            return null;
+        });
+        long nanos = System.nanoTime() - started;
+        //Flushes run every few seconds; only the slow ones are worth a line.
+        if (nanos > Database.SLOW_MILLIS * 1000000) {
+            System.out.println(String.format("Slow flush of %d queued "
+                    + "writes: %.2f ms", batch.size(), nanos / 1e6));
+        }
+    }
+
+    /**
+     * Replaces each student's walk_ins rows with the queued dates, which are
+     * the student's full walk-in list as an int[] of epoch days.
+     */
+    private void writeWalkIns(Database db, List<Map.Entry<Key, Object>> entries)
+            throws SQLException {
+        PreparedStatement delete = db.prepare("delete from walk_ins where "
+                + "student_id = ?;");
+        for (Map.Entry<Key, Object> entry : entries) {
+            delete.setInt(1, entry.getKey().id);
+            delete.addBatch();
+        }
+        delete.executeBatch();
+        PreparedStatement insert = db.prepare("insert into walk_ins "
+                + "(student_id, day) values (?, ?);");
+        for (Map.Entry<Key, Object> entry : entries) {
+            for (int day : (int[]) entry.getValue()) {
+                insert.setInt(1, entry.getKey().id);
+                insert.setInt(2, day);
+                insert.addBatch();
+            }
+        }
+        insert.executeBatch();
+    }
+
+    /**
+     * Replaces each student's forms rows with the queued forms, which are the
+     * student's full list of attached Form records in order.
+     */
+    @SuppressWarnings("unchecked")
+    private void writeForms(Database db, List<Map.Entry<Key, Object>> entries)
+            throws SQLException {
+        PreparedStatement delete = db.prepare("delete from forms where "
+                + "student_id = ?;");
+        for (Map.Entry<Key, Object> entry : entries) {
+            delete.setInt(1, entry.getKey().id);
+            delete.addBatch();
+        }
+        delete.executeBatch();
+        PreparedStatement insert = db.prepare("insert into forms (student_id, "
+                + "fileName, size, modified, hash) values (?, ?, ?, ?, ?);");
+        for (Map.Entry<Key, Object> entry : entries) {
+            for (Form form : (Collection<Form>) entry.getValue()) {
+                insert.setInt(1, entry.getKey().id);
+                insert.setString(2, form.getFileName());
+                insert.setLong(3, form.getSize());
+                insert.setLong(4, form.getModified());
+                insert.setString(5, form.getHash());
+                insert.addBatch();
+            }
+        }
+        insert.executeBatch();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (SQLException sql) {
+            System.err.println("Could not flush queued writes: " + sql);
+        }
+    }
+
+    private static final class Key {
+
+        Key(int id, Category cat) {
+            this.id = id;
+            this.cat = cat;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return cat == other.cat && id == other.id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * id + cat.hashCode();
+        }
+
+        private final int id;
+        private final Category cat;
+    }
+
+    //Columns that feed the student_search full-text table.
+    private static final Set<Category> SEARCHABLE = EnumSet.of(
+            Category.notes, Category.forms);
+
+    private final Database database;
+    private final int maxPending;
+    private final ScheduledExecutorService flusher;
+    private final Map<Key, Object> pending = new LinkedHashMap<>();
+    private long journaled = 0;
+    private final Object flushLock = new Object();
+    private volatile ChangeJournal journal;
+}